@@ -29,6 +29,9 @@ def listener(ws):
                 t = data.get('type', 'unknown')
                 if t == 'chat':
                     print(f"[{data.get('user','Anon')}] {data.get('text','')}")
+                elif t == 'chat_batch':
+                    for c in data.get('items', []):
+                        print(f"[{c.get('user','Anon')}] {c.get('text','')}")
                 elif t == 'system':
                     ev = data.get('event')
                     if ev == 'upload_receiving':
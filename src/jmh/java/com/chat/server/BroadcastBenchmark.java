@@ -0,0 +1,72 @@
+package com.chat.server;
+
+import jakarta.websocket.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out de {@link Broadcaster} a N sesiones falsas. Una operación = un mensaje entregado a
+ * todas las sesiones, así que los msgs/s por sesión son ops/s × sessions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int sessions;
+
+    private Broadcaster broadcaster;
+    private List<Session> room;
+    private Frame frame;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        broadcaster = new Broadcaster(256, Broadcaster.OverflowPolicy.DROP_OLDEST);
+        List<Session> all = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            StubSession s = new StubSession();
+            all.add(s);
+            broadcaster.register(s);
+        }
+        // una sala con el 10% de las sesiones
+        room = new ArrayList<>(all.subList(0, Math.max(1, sessions / 10)));
+        frame = Frame.chat(1, "general", "bench", "hola, esto es un mensaje de prueba");
+    }
+
+    /** El mismo frame ya codificado para todas las sesiones. */
+    @Benchmark
+    public void broadcastEncoded() {
+        broadcaster.broadcast(frame);
+    }
+
+    /** Codificar el mensaje (una vez) y difundirlo, como hace el endpoint con cada chat. */
+    @Benchmark
+    public void encodeAndBroadcast() {
+        broadcaster.broadcast(Frame.chat(++seq, "general", "bench", "hola, esto es un mensaje de prueba"));
+    }
+
+    /** Envío a un subconjunto (los miembros de una sala), vía {@link Broadcaster#sendTo}. */
+    @Benchmark
+    public void sendToRoom() {
+        broadcaster.sendTo(room, frame);
+    }
+}
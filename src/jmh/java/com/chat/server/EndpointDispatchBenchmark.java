@@ -0,0 +1,97 @@
+package com.chat.server;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parseo JSON + despacho de {@link ChatEndpoint#onMessage} por tipo de mensaje, con una sesión
+ * falsa en la sala por defecto. La salida de consola del endpoint se descarta durante la medición.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EndpointDispatchBenchmark {
+
+    @Param({"chat", "join", "history", "upload_status", "unknown"})
+    public String type;
+
+    private ChatEndpoint endpoint;
+    private StubSession session;
+    private String message;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // antes de inicializar ChatEndpoint: log y subidas en un directorio temporal
+        System.setProperty("chat.log.dir", Files.createTempDirectory("bench-log").toString());
+        System.setProperty("chat.upload.dir", Files.createTempDirectory("bench-upload").toString());
+        // se mide el despacho, no el control de admisión (una sola sesión superaría los límites al instante)
+        System.setProperty("chat.ratelimit.enabled", "false");
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        endpoint = new ChatEndpoint();
+        session = new StubSession();
+        endpoint.onOpen(session);
+        endpoint.onMessage("{\"type\":\"system\",\"event\":\"join\",\"user\":\"bench\"}", session);
+        switch (type) {
+            case "chat":
+                message = "{\"type\":\"chat\",\"user\":\"bench\",\"room\":\"general\",\"text\":\"hola, esto es un mensaje de prueba\"}";
+                break;
+            case "join":
+                // ya es miembro: mide el camino de re-join (evento + replay de la sala)
+                message = "{\"type\":\"join\",\"room\":\"general\"}";
+                break;
+            case "history":
+                for (int i = 0; i < 100; i++) {
+                    endpoint.onMessage("{\"type\":\"chat\",\"user\":\"bench\",\"room\":\"general\",\"text\":\"m" + i + "\"}", session);
+                }
+                message = "{\"type\":\"history\",\"room\":\"general\",\"since\":0,\"limit\":50}";
+                break;
+            case "upload_status":
+                message = "{\"type\":\"upload_status\",\"fileId\":\"no-existe\"}";
+                break;
+            default:
+                message = "{\"type\":\"" + type + "\",\"payload\":123}";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        endpoint.onClose(session);
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void dispatch() {
+        endpoint.onMessage(message, session);
+    }
+
+    /** Solo el parseo, para separar su coste del despacho. */
+    @Benchmark
+    public void parseOnly(Blackhole bh) {
+        JSONObject data = new JSONObject(message);
+        bh.consume(data.optString("type", ""));
+    }
+}
@@ -0,0 +1,77 @@
+package com.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Escritura de chunks con {@link UploadState#write(ByteBuffer, long)} (FileChannel + bitmap de rangos
+ * + checkpoints). Una operación = un chunk; MB/s = ops/s × chunkSize / 2^20.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UploadWriteBenchmark {
+
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    @Param({"4096", "65536", "1048576"})
+    public int chunkSize;
+
+    /** heap = lo que entrega Tyrus normalmente; direct = sin la copia al pool de buffers directos */
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    private Path dir;
+    private UploadState state;
+    private ByteBuffer chunk;
+    private long offset;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bench-upload");
+        state = UploadState.open(dir, "bench", "bench.bin", FILE_SIZE, chunkSize);
+        byte[] data = new byte[chunkSize];
+        ThreadLocalRandom.current().nextBytes(data);
+        chunk = "direct".equals(buffer) ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+        chunk.put(data).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        state.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void writeChunk() throws IOException {
+        chunk.rewind();
+        state.write(chunk, offset);
+        offset += chunkSize;
+        if (offset >= FILE_SIZE) offset = 0;
+    }
+}
@@ -1,5 +1,10 @@
 package com.chat.client;
 
+import com.chat.common.BinaryFrame;
+import com.chat.common.ChunkCompressor;
+import com.chat.common.InstrumentedExecutor;
+import com.chat.common.PerMessageDeflate;
+import com.chat.common.Workers;
 import jakarta.websocket.ClientEndpointConfig;
 import jakarta.websocket.ContainerProvider;
 import jakarta.websocket.Endpoint;
@@ -7,27 +12,69 @@ import jakarta.websocket.EndpointConfig;
 import jakarta.websocket.MessageHandler;
 import jakarta.websocket.Session;
 import jakarta.websocket.WebSocketContainer;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.net.URI;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Cliente de consola Java para el MVP.
- * - Hilo principal: lee comandos del usuario (/say, /upload, /pdf, /quit)
+ * - Hilo principal: lee comandos del usuario (/say, /upload, /uploadfile, /resume, /pdf, /quit)
  * - Listener: MessageHandler que imprime mensajes recibidos
  */
 public class ChatClient {
 
+    // Tamaño de chunk y chunks en vuelo por subida (-Dchat.upload.chunk.size, -Dchat.upload.window)
+    private static final int CHUNK_SIZE = Integer.getInteger("chat.upload.chunk.size", 64 * 1024);
+    private static final int UPLOAD_WINDOW = Integer.getInteger("chat.upload.window", 8);
+
+    // Workers de subida (/upload, /uploadfile). Modelo con -Dchat.client.worker.mode=virtual|platform|work_stealing
+    // (por defecto hilos virtuales si la JVM los soporta) y tamaño con -Dchat.client.worker.pool.size
+    private static final InstrumentedExecutor WORKERS = Workers.create("chat-client-worker",
+            Workers.modeFromSystemProperty("chat.client.worker.mode", Workers.virtualIfAvailable()),
+            Integer.getInteger("chat.client.worker.pool.size", 8));
+
+    // Subidas de este cliente: fileId -> fichero local (para responder a upload_status y reanudar)
+    private static final Map<String, File> subidas = new ConcurrentHashMap<>();
+    // último seq de chat visto (para pedir /history desde ahí)
+    private static final AtomicLong ultimoSeq = new AtomicLong();
+    // fileIds con un worker enviando rangos en este momento
+    private static final Set<String> enviando = ConcurrentHashMap.newKeySet();
+    // descarga en curso (/download): el servidor envía una a la vez por sesión
+    private static volatile Descarga descarga;
+    // mensajes de progreso de las subidas por consola (el generador de carga los apaga)
+    static volatile boolean verbose = true;
+    // -Dchat.client.protocol=binary (por defecto) pide el subprotocolo chat.bin.v1; json no lo pide.
+    // Si el servidor no lo acepta se usa JSON igualmente.
+    private static final boolean PREFER_BINARY =
+            !"json".equalsIgnoreCase(System.getProperty("chat.client.protocol", "binary"));
+
     public static void main(String[] args) throws Exception {
-        String uri = "ws://localhost:8080/ws/chat";
+        if (args.length > 0 && "--load".equals(args[0])) {
+            // modo sin consola: miles de sesiones con tráfico sintético (ver LoadGenerator)
+            LoadGenerator.fromSystemProperties().run();
+            return;
+        }
+        // -Dchat.server.uri para conectarse a otro nodo del cluster
+        String uri = System.getProperty("chat.server.uri", "ws://localhost:8080/ws/chat");
         AtomicReference<Session> sessionRef = new AtomicReference<>();
 
         WebSocketContainer container = ContainerProvider.getWebSocketContainer();
@@ -42,22 +89,123 @@ public class ChatClient {
                         try {
                             JSONObject data = new JSONObject(message);
                             String type = data.optString("type", "");
+                            if ("history".equals(type)) {
+                                // replay de la sala: lista de mensajes de chat ya emitidos
+                                JSONArray items = data.optJSONArray("items");
+                                if (items != null && items.length() > 0) {
+                                    System.out.printf("--- historial de %s (%d) ---\n", data.optString("room", ""), items.length());
+                                    for (int i = 0; i < items.length(); i++) {
+                                        onMessage(items.getJSONObject(i).toString());
+                                    }
+                                    System.out.println("--- fin del historial ---");
+                                }
+                                return;
+                            }
                             if ("chat".equals(type)) {
-                                System.out.printf("[%s] %s\n", data.optString("user", "Anon"), data.optString("text", ""));
+                                mostrarChat(data.optLong("seq", 0), data.optString("room", "general"),
+                                        data.optString("user", "Anon"), data.optString("text", ""));
+                            } else if ("chat_batch".equals(type)) {
+                                // varios chats de una sala en un frame (micro-batching del servidor), en orden
+                                JSONArray items = data.optJSONArray("items");
+                                for (int i = 0; items != null && i < items.length(); i++) {
+                                    JSONObject c = items.getJSONObject(i);
+                                    mostrarChat(c.optLong("seq", 0), c.optString("room", "general"),
+                                            c.optString("user", "Anon"), c.optString("text", ""));
+                                }
                             } else if ("system".equals(type)) {
                                 String ev = data.optString("event", "");
                                 switch (ev) {
                                     case "upload_receiving":
-                                        System.out.printf("[SYSTEM] Recibiendo parte %d de %s\n", data.optInt("part", -1), data.optString("file", ""));
+                                        if (data.has("percent")) {
+                                            System.out.printf("[SYSTEM] Subiendo %s: %d%% (%d KB/s, ETA %d s)\n", data.optString("file", ""),
+                                                    data.optInt("percent", -1), data.optLong("bytesPerSec", 0) / 1024, data.optLong("etaMs", -1) / 1000);
+                                        } else {
+                                            System.out.printf("[SYSTEM] Recibiendo parte %d de %s\n", data.optInt("part", -1), data.optString("file", ""));
+                                        }
                                         break;
                                     case "upload_done":
-                                        System.out.printf("[SYSTEM] Subida terminada: %s\n", data.optString("file", ""));
+                                        terminarSubida(data.optString("fileId", ""));
+                                        if (data.has("hash")) {
+                                            System.out.printf("[SYSTEM] Subida terminada: %s (/download %s)%s\n", data.optString("file", ""),
+                                                    data.optString("hash"), data.optBoolean("duplicate", false) ? " [contenido ya almacenado]" : "");
+                                        } else {
+                                            System.out.printf("[SYSTEM] Subida terminada: %s\n", data.optString("file", ""));
+                                        }
+                                        break;
+                                    case "download_start":
+                                        descarga = Descarga.abrir(data);
+                                        System.out.printf("[SYSTEM] Descargando %s (%d bytes)\n", data.optString("name", ""), data.optLong("size", 0));
+                                        break;
+                                    case "download_end":
+                                        if (descarga != null) {
+                                            System.out.println("[SYSTEM] Descarga terminada: " + descarga.cerrar());
+                                            descarga = null;
+                                        }
+                                        break;
+                                    case "download_error":
+                                        System.out.printf("[SYSTEM] No se pudo descargar %s (%s)\n", data.optString("hash", ""), data.optString("reason", ""));
+                                        break;
+                                    case "upload_status":
+                                        onUploadStatus(sessionRef, data);
+                                        break;
+                                    case "throttled":
+                                        System.out.printf("[SYSTEM] Demasiado tráfico (%s, %s): esperando %d ms\n", data.optString("scope", ""),
+                                                data.optString("limit", ""), data.optLong("retryAfterMs", 0));
+                                        onThrottled(sessionRef, data);
+                                        break;
+                                    case "delivery_summary": {
+                                        // la conexión fue lenta y el servidor omitió eventos (y quizá chats) para no acumularlos
+                                        JSONObject porTipo = data.optJSONObject("byType");
+                                        System.out.printf("[SYSTEM] Conexión lenta: se omitieron %d mensajes %s\n", data.optInt("omitted", 0),
+                                                porTipo != null ? porTipo.toString() : "");
+                                        if (porTipo != null && (porTipo.has("chat") || porTipo.has("chat_batch"))) {
+                                            System.out.println("[SYSTEM] Se perdieron mensajes de chat: /history " + ultimoSeq.get());
+                                        }
+                                        break;
+                                    }
+                                    case "upload_rejected":
+                                        if ("draining".equals(data.optString("reason"))) {
+                                            // el servidor se está parando: la subida se reanuda al volver a conectar
+                                            System.out.printf("[SYSTEM] Servidor reiniciándose: /resume %s al reconectar\n", data.optString("fileId", ""));
+                                            break;
+                                        }
+                                        System.out.printf("[SYSTEM] Servidor sin huecos de subida: reintentando %s en %d ms\n",
+                                                data.optString("fileId", ""), data.optLong("retryAfterMs", 0));
+                                        onUploadRejected(sessionRef, data);
+                                        break;
+                                    case "upload_error":
+                                        System.out.printf("[SYSTEM] Subida %s rechazada por el servidor: %s\n",
+                                                data.optString("fileId", ""), data.optString("reason", ""));
+                                        subidas.remove(data.optString("fileId", ""));
+                                        break;
+                                    case "server_draining":
+                                        System.out.printf("[SYSTEM] El servidor se va a reiniciar (cierra en %d ms como mucho); las subidas a medias se podrán reanudar\n",
+                                                data.optLong("drainMs", 0));
+                                        break;
+                                    case "joined":
+                                    case "left":
+                                        System.out.printf("[SYSTEM] %s sala %s\n", "joined".equals(ev) ? "Entraste a la" : "Saliste de la", data.optString("room", ""));
+                                        break;
+                                    case "user_joined":
+                                    case "user_left":
+                                        System.out.printf("[SYSTEM] %s %s %s\n", data.optString("user", ""),
+                                                "user_joined".equals(ev) ? "entró a" : "salió de", data.optString("room", ""));
+                                        break;
+                                    case "not_in_room":
+                                        System.out.printf("[SYSTEM] No estás en la sala %s (usa /join)\n", data.optString("room", ""));
                                         break;
                                     case "pdf_creating":
-                                        System.out.printf("[SYSTEM] Creando PDF: %s\n", data.optString("title", ""));
+                                        System.out.printf("[SYSTEM] Creando PDF: %s (jobId=%s)\n", data.optString("title", ""), data.optString("jobId", ""));
                                         break;
                                     case "pdf_ready":
-                                        System.out.printf("[SYSTEM] PDF listo: %s\n", data.optString("title", ""));
+                                        System.out.printf("[SYSTEM] PDF listo: %s -> %s%s\n", data.optString("title", ""), data.optString("path", ""),
+                                                data.optBoolean("cached", false) ? " (caché)" : "");
+                                        break;
+                                    case "pdf_rejected":
+                                        System.out.printf("[SYSTEM] PDF rechazado: %s (%s)\n", data.optString("title", ""), data.optString("reason", ""));
+                                        break;
+                                    case "pdf_cancelled":
+                                        System.out.printf("[SYSTEM] PDF cancelado: %s\n", data.optString("title", ""));
                                         break;
                                     default:
                                         System.out.println("[SYSTEM] " + data.toString());
@@ -70,11 +218,35 @@ public class ChatClient {
                         }
                     }
                 });
+                // chat.bin.v1: los mensajes de chat llegan como frames binarios
+                session.addMessageHandler(ByteBuffer.class, new MessageHandler.Whole<ByteBuffer>() {
+                    @Override
+                    public void onMessage(ByteBuffer message) {
+                        try {
+                            if (!binario(session)) {
+                                // JSON: los únicos binarios son trozos de la descarga en curso, en orden
+                                Descarga d = descarga;
+                                if (d != null) d.escribir(message, -1);
+                                return;
+                            }
+                            BinaryFrame f = BinaryFrame.decode(message);
+                            if (f.type == BinaryFrame.CHAT) {
+                                mostrarChat(f.seq, f.id, f.chatUser(), f.chatText());
+                            } else if (f.type == BinaryFrame.DOWNLOAD_CHUNK) {
+                                Descarga d = descarga;
+                                if (d != null && d.hash.equals(f.id)) d.escribir(f.payload, f.offset);
+                            }
+                        } catch (RuntimeException | IOException e) {
+                            System.out.println("RECV (binario inválido): " + e.getMessage());
+                        }
+                    }
+                });
+                if (binario(session)) System.out.println("Protocolo: " + BinaryFrame.SUBPROTOCOL);
                 sessionRef.set(session);
             }
 
             @Override
-            public void onClose(Session session, javax.websocket.CloseReason closeReason) {
+            public void onClose(Session session, jakarta.websocket.CloseReason closeReason) {
                 System.out.println("Conexión cerrada: " + closeReason);
                 sessionRef.set(null);
             }
@@ -85,7 +257,7 @@ public class ChatClient {
             }
         };
 
-        container.connectToServer(clientEndpoint, ClientEndpointConfig.Builder.create().build(), URI.create(uri));
+        container.connectToServer(clientEndpoint, clientConfig(), URI.create(uri));
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         System.out.print("Nombre de usuario: ");
@@ -95,14 +267,11 @@ public class ChatClient {
         // enviar un join opcional
         Session sess = sessionRef.get();
         if (sess != null && sess.isOpen()) {
-            JSONObject join = new JSONObject();
-            join.put("type", "system");
-            join.put("event", "join");
-            join.put("user", user);
-            sess.getAsyncRemote().sendText(join.toString());
+            sess.getAsyncRemote().sendText(mensajeJoin(user, "general"));
         }
 
-    System.out.println("Comandos: /say texto | /upload nombre.ext (simulado) | /uploadfile ruta/a/archivo | /pdf Titulo | /quit");
+        String sala = "general";
+    System.out.println("Comandos: /say texto | /join sala | /leave sala | /room sala | /history [seq] | /upload nombre.ext (simulado) | /uploadfile ruta/a/archivo | /resume fileId ruta | /download hash | /pdf Titulo | /pdfcancel jobId | /quit");
         while (true) {
             String line = reader.readLine();
             if (line == null) break;
@@ -112,11 +281,38 @@ public class ChatClient {
             Session s = sessionRef.get();
             if (line.startsWith("/say ")) {
                 String text = line.substring(5);
-                JSONObject chat = new JSONObject();
-                chat.put("type", "chat");
-                chat.put("user", user);
-                chat.put("text", text);
-                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(chat.toString());
+                if (s != null && s.isOpen()) enviarChat(s, sala, user, text);
+            } else if (line.startsWith("/join ") || line.startsWith("/leave ")) {
+                boolean join = line.startsWith("/join ");
+                String room = line.substring(join ? 6 : 7).trim();
+                JSONObject msg = new JSONObject();
+                msg.put("type", join ? "join" : "leave");
+                msg.put("room", room);
+                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(msg.toString());
+                if (join) {
+                    sala = room;
+                } else if (room.equals(sala)) {
+                    sala = "general";
+                }
+            } else if (line.equals("/history") || line.startsWith("/history ")) {
+                // /history [desdeSeq]: mensajes de la sala actual posteriores a ese seq (por defecto, todos)
+                String arg = line.length() > 8 ? line.substring(9).trim() : "0";
+                long since;
+                try {
+                    since = arg.isEmpty() ? 0 : Long.parseLong(arg);
+                } catch (NumberFormatException e) {
+                    System.out.println("Usa: /history [seq] (seq es un número)");
+                    continue;
+                }
+                JSONObject h = new JSONObject();
+                h.put("type", "history");
+                h.put("room", sala);
+                h.put("since", since);
+                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(h.toString());
+            } else if (line.startsWith("/room ")) {
+                // sala a la que van /say y /pdf
+                sala = line.substring(6).trim();
+                System.out.println("Sala actual: " + sala);
             } else if (line.startsWith("/upload ")) {
                 String name = line.substring(8).trim();
                 if (name.isEmpty()) {
@@ -124,7 +320,7 @@ public class ChatClient {
                     continue;
                 }
                 // worker thread
-                new Thread(() -> {
+                WORKERS.execute(() -> {
                     try {
                         for (int i = 1; i <= 3; i++) {
                             JSONObject chunk = new JSONObject();
@@ -144,7 +340,7 @@ public class ChatClient {
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
-                }, "upload-worker").start();
+                });
                 System.out.println("Subida simulada iniciada para: " + name);
             } else if (line.startsWith("/uploadfile ")) {
                 String ruta = line.substring(12).trim();
@@ -154,54 +350,42 @@ public class ChatClient {
                     continue;
                 }
                 String fileId = UUID.randomUUID().toString();
-                String filename = f.getName();
-                long size = f.length();
-                // enviar upload_start
-                JSONObject start = new JSONObject();
-                start.put("type", "upload_start");
-                start.put("fileId", fileId);
-                start.put("name", filename);
-                start.put("size", size);
-                Session ss0 = sessionRef.get();
-                if (ss0 != null && ss0.isOpen()) ss0.getAsyncRemote().sendText(start.toString());
-
-                // enviar en hilo los chunks binarios
-                new Thread(() -> {
-                    try (FileInputStream fis = new FileInputStream(f)) {
-                        byte[] buf = new byte[64 * 1024];
-                        int r;
-                        while ((r = fis.read(buf)) > 0) {
-                            JSONObject meta = new JSONObject();
-                            meta.put("type", "upload_chunk_meta");
-                            meta.put("fileId", fileId);
-                            meta.put("len", r);
-                            Session ss = sessionRef.get();
-                            if (ss == null || !ss.isOpen()) break;
-                            ss.getAsyncRemote().sendText(meta.toString());
-                            ss.getAsyncRemote().sendBinary(ByteBuffer.wrap(buf, 0, r));
-                            Thread.sleep(50);
-                        }
-                        JSONObject end = new JSONObject();
-                        end.put("type", "upload_end");
-                        end.put("fileId", fileId);
-                        Session ss = sessionRef.get();
-                        if (ss != null && ss.isOpen()) ss.getAsyncRemote().sendText(end.toString());
-                        System.out.println("Subida de archivo terminada: " + ruta);
-                    } catch (Exception e) {
-                        System.err.println("Error subiendo archivo: " + e.getMessage());
-                    }
-                }, "uploadfile-worker").start();
-                System.out.println("Subida de archivo iniciada (binario) para: " + ruta);
+                // el servidor responde con upload_status (rangos que faltan) y entonces se envían los chunks
+                subirArchivo(sessionRef.get(), fileId, f);
+                System.out.println("Subida de archivo iniciada (binario) para: " + ruta + " (fileId=" + fileId + ")");
+            } else if (line.startsWith("/resume ")) {
+                String[] partes = line.substring(8).trim().split("\\s+", 2);
+                if (partes.length < 2) {
+                    System.out.println("Usa: /resume fileId ruta/a/archivo");
+                    continue;
+                }
+                File f = new File(partes[1]);
+                if (!f.exists() || !f.isFile()) {
+                    System.out.println("Archivo no encontrado: " + partes[1]);
+                    continue;
+                }
+                // mismo fileId: el servidor reanuda desde su bitmap y solo pide lo que falta
+                subirArchivo(sessionRef.get(), partes[0], f);
+                System.out.println("Reanudando subida fileId=" + partes[0]);
+            } else if (line.startsWith("/download ")) {
+                // el hash lo anuncia upload_done
+                JSONObject d = new JSONObject();
+                d.put("type", "download");
+                d.put("hash", line.substring(10).trim());
+                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(d.toString());
             } else if (line.startsWith("/pdf ")) {
                 String title = line.substring(5).trim();
                 if (title.isEmpty()) {
                     System.out.println("Usa: /pdf Titulo del PDF");
                     continue;
                 }
-                JSONObject pdf = new JSONObject();
-                pdf.put("type", "create_pdf");
-                pdf.put("title", title);
-                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(pdf.toString());
+                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(mensajePdf(title, user, sala));
+            } else if (line.startsWith("/pdfcancel ")) {
+                JSONObject cancel = new JSONObject();
+                cancel.put("type", "cancel_pdf");
+                cancel.put("jobId", line.substring(11).trim());
+                cancel.put("user", user);
+                if (s != null && s.isOpen()) s.getAsyncRemote().sendText(cancel.toString());
             } else if (line.equals("/quit")) {
                 Session ss = sessionRef.get();
                 if (ss != null && ss.isOpen()) {
@@ -221,4 +405,283 @@ public class ChatClient {
         System.out.println("Cliente terminando");
         System.exit(0);
     }
+
+    static ClientEndpointConfig clientConfig() {
+        ClientEndpointConfig.Builder b = ClientEndpointConfig.Builder.create();
+        if (PREFER_BINARY) b.preferredSubprotocols(List.of(BinaryFrame.SUBPROTOCOL));
+        // permessage-deflate (-Dchat.ws.deflate=false para no ofrecerlo)
+        b.extensions(PerMessageDeflate.clientExtensions());
+        return b.build();
+    }
+
+    /** true si la sesión negoció chat.bin.v1. */
+    static boolean binario(Session s) {
+        return BinaryFrame.SUBPROTOCOL.equals(s.getNegotiatedSubprotocol());
+    }
+
+    static void enviarChat(Session s, String room, String user, String text) {
+        if (binario(s)) {
+            s.getAsyncRemote().sendBinary(BinaryFrame.chat(room, 0, user, text));
+        } else {
+            s.getAsyncRemote().sendText(mensajeChat(room, user, text));
+        }
+    }
+
+    private static void mostrarChat(long seq, String room, String user, String text) {
+        ultimoSeq.accumulateAndGet(seq, Math::max);
+        if ("general".equals(room)) {
+            System.out.printf("[%s] %s\n", user, text);
+        } else {
+            System.out.printf("[%s@%s] %s\n", user, room, text);
+        }
+    }
+
+    static String mensajeJoin(String user, String room) {
+        JSONObject join = new JSONObject();
+        join.put("type", "system");
+        join.put("event", "join");
+        join.put("user", user);
+        join.put("room", room);
+        return join.toString();
+    }
+
+    static String mensajeChat(String room, String user, String text) {
+        JSONObject chat = new JSONObject();
+        chat.put("type", "chat");
+        chat.put("room", room);
+        chat.put("user", user);
+        chat.put("text", text);
+        return chat.toString();
+    }
+
+    static String mensajePdf(String title, String user, String room) {
+        JSONObject pdf = new JSONObject();
+        pdf.put("type", "create_pdf");
+        pdf.put("title", title);
+        pdf.put("user", user);
+        pdf.put("room", room);
+        return pdf.toString();
+    }
+
+    static void terminarSubida(String fileId) {
+        subidas.remove(fileId);
+    }
+
+    /** Registra la subida y envía upload_start; los chunks salen al llegar el upload_status. */
+    static void subirArchivo(Session s, String fileId, File f) {
+        subidas.put(fileId, f);
+        enviarUploadStart(s, fileId, f);
+    }
+
+    private static void enviarUploadStart(Session s, String fileId, File f) {
+        JSONObject start = new JSONObject();
+        start.put("type", "upload_start");
+        start.put("fileId", fileId);
+        start.put("name", f.getName());
+        start.put("size", f.length());
+        start.put("chunkSize", CHUNK_SIZE);
+        if (s != null && s.isOpen()) s.getAsyncRemote().sendText(start.toString());
+    }
+
+    /**
+     * El servidor descartó un mensaje por límite de tasa: pausar los envíos de la sesión retryAfterMs y,
+     * si lo descartado era el upload_start o el upload_end de una subida nuestra, repetirlo después
+     * (el upload_end se repite preguntando por los rangos que faltan, que termina en otro upload_end).
+     */
+    static void onThrottled(AtomicReference<Session> sessionRef, JSONObject data) {
+        Session s = sessionRef.get();
+        if (s == null) return;
+        pausar(s, data.optLong("retryAfterMs", 0));
+        String fileId = data.optString("fileId", "");
+        File f = subidas.get(fileId);
+        if (f == null) return;
+        boolean start = "upload_start".equals(data.optString("dropped"));
+        WORKERS.execute(() -> {
+            try {
+                esperarPausa(s);
+                if (start) {
+                    enviarUploadStart(s, fileId, f);
+                } else if (s.isOpen()) {
+                    JSONObject status = new JSONObject();
+                    status.put("type", "upload_status");
+                    status.put("fileId", fileId);
+                    s.getAsyncRemote().sendText(status.toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /** Tope de subidas abiertas en el servidor: repetir el upload_start pasado retryAfterMs. */
+    static void onUploadRejected(AtomicReference<Session> sessionRef, JSONObject data) {
+        String fileId = data.optString("fileId", "");
+        File f = subidas.get(fileId);
+        if (f == null) return;
+        long ms = Math.max(1, data.optLong("retryAfterMs", 1000));
+        WORKERS.execute(() -> {
+            try {
+                Thread.sleep(ms);
+                if (subidas.containsKey(fileId)) enviarUploadStart(sessionRef.get(), fileId, f);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /** No enviar nada más por {@code s} durante {@code ms} milisegundos. */
+    private static void pausar(Session s, long ms) {
+        long hasta = System.nanoTime() + ms * 1_000_000;
+        s.getUserProperties().merge("chat.pausa", hasta, (a, b) -> Math.max((Long) a, (Long) b));
+    }
+
+    private static void esperarPausa(Session s) throws InterruptedException {
+        Object hasta = s.getUserProperties().get("chat.pausa");
+        if (hasta == null) return;
+        long ms = ((Long) hasta - System.nanoTime()) / 1_000_000;
+        if (ms > 0) Thread.sleep(ms);
+    }
+
+    /** Respuesta del servidor con los rangos que faltan de una subida nuestra: enviarlos en un worker. */
+    static void onUploadStatus(AtomicReference<Session> sessionRef, JSONObject data) {
+        String fileId = data.optString("fileId", "");
+        File f = subidas.get(fileId);
+        if (f == null || !data.optBoolean("known", false)) return;
+        if (!enviando.add(fileId)) return; // ya hay un worker para este fileId
+        int chunkSize = data.optInt("chunkSize", CHUNK_SIZE);
+        List<long[]> missing = new ArrayList<>();
+        JSONArray arr = data.optJSONArray("missing");
+        if (arr != null) {
+            for (int i = 0; i < arr.length(); i++) {
+                JSONArray r = arr.getJSONArray(i);
+                missing.add(new long[]{r.getLong(0), r.getLong(1)});
+            }
+        }
+        WORKERS.execute(() -> {
+            boolean enviados = false;
+            try {
+                enviados = enviarRangos(sessionRef, fileId, f, missing, chunkSize);
+            } catch (Exception e) {
+                System.err.println("Error subiendo archivo: " + e.getMessage());
+            } finally {
+                // antes del upload_end: si aún faltan rangos, su upload_status puede llegar en cuanto se envíe
+                enviando.remove(fileId);
+            }
+            if (enviados) enviarFin(sessionRef, fileId, f);
+        });
+    }
+
+    /**
+     * Envía los rangos indicados en chunks de chunkSize, con hasta UPLOAD_WINDOW chunks en vuelo
+     * (cada chunk lleva su offset, así que el orden de llegada no importa). Devuelve true si se enviaron todos;
+     * después va el upload_end ({@link #enviarFin}) y si el servidor aún detecta huecos responde con otro
+     * upload_status y se reenvían.
+     * Con chat.bin.v1 cada chunk es un único frame (cabecera + datos); en JSON, upload_chunk_meta + binario.
+     * Con -Dchat.upload.compress=true los chunks que compensa van comprimidos ({@link ChunkCompressor}).
+     */
+    private static boolean enviarRangos(AtomicReference<Session> sessionRef, String fileId, File f,
+                                        List<long[]> missing, int chunkSize) throws IOException, InterruptedException {
+        Session inicial = sessionRef.get();
+        boolean bin = inicial != null && binario(inicial);
+        int header = bin ? BinaryFrame.headerSize(fileId) : 0;
+        Semaphore window = new Semaphore(UPLOAD_WINDOW);
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(UPLOAD_WINDOW);
+        for (int i = 0; i < UPLOAD_WINDOW; i++) buffers.add(ByteBuffer.allocate(header + chunkSize));
+        AtomicReference<Throwable> fallo = new AtomicReference<>();
+        // la compresión se hace aquí, en el hilo que lee: un solo buffer intermedio basta
+        ChunkCompressor compresor = ChunkCompressor.forFile(f.getName());
+        byte[] comprimido = compresor.active() ? new byte[chunkSize] : null;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            for (long[] r : missing) {
+                long off = r[0];
+                long end = r[0] + r[1];
+                while (off < end && fallo.get() == null) {
+                    Session ss = sessionRef.get();
+                    if (ss == null || !ss.isOpen()) {
+                        System.out.println("Conexión perdida; usa /resume " + fileId + " " + f.getPath());
+                        return false;
+                    }
+                    esperarPausa(ss);
+                    window.acquire();
+                    ByteBuffer buf = buffers.take();
+                    int len = (int) Math.min(chunkSize, end - off);
+                    buf.clear();
+                    buf.position(header);
+                    buf.limit(header + len);
+                    long pos = off;
+                    while (buf.hasRemaining()) {
+                        int n = ch.read(buf, pos);
+                        if (n < 0) throw new IOException("El archivo cambió de tamaño: " + f.getPath());
+                        pos += n;
+                    }
+                    int wireLen = compresor.active() ? compresor.compress(buf.array(), header, len, comprimido) : -1;
+                    boolean deflated = wireLen >= 0;
+                    if (deflated) {
+                        System.arraycopy(comprimido, 0, buf.array(), header, wireLen);
+                    } else {
+                        wireLen = len;
+                    }
+                    buf.limit(header + wireLen);
+                    buf.position(0);
+                    if (bin) {
+                        // la cabecera va delante de los datos, en el mismo frame
+                        BinaryFrame.writeHeader(buf, BinaryFrame.CHUNK, deflated ? BinaryFrame.FLAG_DEFLATE : 0,
+                                fileId, 0, off, wireLen);
+                        buf.position(0);
+                    }
+                    try {
+                        if (!bin) {
+                            JSONObject meta = new JSONObject();
+                            meta.put("type", "upload_chunk_meta");
+                            meta.put("fileId", fileId);
+                            meta.put("offset", off);
+                            meta.put("len", len);
+                            if (deflated) meta.put("enc", "deflate");
+                            ss.getAsyncRemote().sendText(meta.toString());
+                        }
+                        ss.getAsyncRemote().sendBinary(buf, result -> {
+                            if (result.getException() != null) fallo.compareAndSet(null, result.getException());
+                            buffers.add(buf);
+                            window.release();
+                        });
+                    } catch (RuntimeException e) {
+                        fallo.compareAndSet(null, e);
+                        buffers.add(buf);
+                        window.release();
+                    }
+                    off = pos;
+                }
+            }
+        } finally {
+            compresor.end();
+        }
+        // esperar a que se completen los envíos en vuelo
+        window.acquire(UPLOAD_WINDOW);
+        if (fallo.get() != null) {
+            throw new IOException("Fallo enviando chunk: " + fallo.get().getMessage(), fallo.get());
+        }
+        if (verbose && compresor.chunks() > 0) System.out.println("Compresión: " + compresor.summary());
+        return true;
+    }
+
+    /** upload_end de una subida cuyos rangos ya se enviaron. */
+    private static void enviarFin(AtomicReference<Session> sessionRef, String fileId, File f) {
+        Session ss = sessionRef.get();
+        if (ss == null || !ss.isOpen()) return;
+        try {
+            esperarPausa(ss);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (binario(ss)) {
+            ss.getAsyncRemote().sendBinary(BinaryFrame.encode(BinaryFrame.UPLOAD_END, fileId));
+        } else {
+            JSONObject end = new JSONObject();
+            end.put("type", "upload_end");
+            end.put("fileId", fileId);
+            ss.getAsyncRemote().sendText(end.toString());
+        }
+        if (verbose) System.out.println("Subida de archivo terminada: " + f.getPath());
+    }
 }
@@ -0,0 +1,71 @@
+package com.chat.client;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Descarga en curso de un fichero del almacén del servidor (/download hash).
+ * Los trozos llegan en orden (download_start, binarios, download_end): se escriben en
+ * -Dchat.download.dir y se resumen con SHA-256 al vuelo para comprobar el contenido al final.
+ */
+final class Descarga {
+
+    private static final Path DIR = Path.of(System.getProperty("chat.download.dir",
+            Path.of(System.getProperty("java.io.tmpdir"), "chat-downloads").toString()));
+
+    final String hash;
+    final long size;
+    final Path path;
+    private final FileChannel ch;
+    private final MessageDigest md;
+    private final long t0 = System.nanoTime();
+    private long recibidos;
+
+    private Descarga(String hash, long size, Path path) throws IOException {
+        this.hash = hash;
+        this.size = size;
+        this.path = path;
+        this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            this.md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A partir del download_start del servidor. */
+    static Descarga abrir(JSONObject data) throws IOException {
+        Files.createDirectories(DIR);
+        String hash = data.optString("hash", "");
+        String name = data.optString("name", hash).replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_");
+        return new Descarga(hash, data.optLong("size", -1), DIR.resolve(name.isBlank() ? hash : name));
+    }
+
+    /** Escribe un trozo; offset -1 = a continuación del anterior (JSON, sin cabecera). */
+    void escribir(ByteBuffer data, long offset) throws IOException {
+        long pos = offset >= 0 ? offset : recibidos;
+        if (pos == recibidos) md.update(data.duplicate());
+        while (data.hasRemaining()) {
+            pos += ch.write(data, pos);
+        }
+        recibidos = Math.max(recibidos, pos);
+    }
+
+    /** Cierra el fichero; devuelve el resumen para consola (con la comprobación del hash). */
+    String cerrar() throws IOException {
+        ch.close();
+        String calculado = HexFormat.of().formatHex(md.digest());
+        double ms = (System.nanoTime() - t0) / 1e6;
+        return String.format("%s (%d de %d bytes en %.0f ms, sha256 %s)", path, recibidos, size, ms,
+                calculado.equals(hash) ? "correcto" : "NO coincide: " + calculado);
+    }
+}
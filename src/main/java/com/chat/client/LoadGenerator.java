@@ -0,0 +1,398 @@
+package com.chat.client;
+
+import com.chat.common.BinaryFrame;
+import com.chat.common.LatencyHistogram;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga sin consola: {@code ChatClient --load}.
+ * - Abre chat.load.sessions sesiones WebSocket; cada una entra a una sala de chat.load.room.size usuarios
+ * - Genera chat.load.rate operaciones/s durante chat.load.duration.s repartidas según chat.load.mix
+ *   ({@code say:94,upload:3,pdf:3}); las subidas usan el mismo código que /uploadfile
+ * - Latencia extremo a extremo medida desde el instante <b>programado</b> de cada operación (no desde
+ *   que se pudo enviar), así un servidor lento no esconde su cola (coordinated omission)
+ * - say: hasta que cada miembro de la sala recibe el mensaje; upload: upload_start → upload_done;
+ *   pdf: create_pdf → pdf_ready o pdf_rejected
+ */
+final class LoadGenerator {
+
+    private enum Op { SAY, UPLOAD, PDF }
+
+    private static final String MARCA = "lg ";
+
+    private final URI uri;
+    private final int sessions;
+    private final int rate;
+    private final int durationSec;
+    private final int roomSize;
+    private final int reportSec;
+    private final int drainSec;
+    private final int connectParallelism;
+    private final int uploadSize;
+    private final Op[] mezcla;
+
+    private final LatencyHistogram sayTotal = new LatencyHistogram();
+    private final LatencyHistogram uploadTotal = new LatencyHistogram();
+    private final LatencyHistogram pdfTotal = new LatencyHistogram();
+    private final LatencyHistogram sayIntervalo = new LatencyHistogram();
+    private final LatencyHistogram uploadIntervalo = new LatencyHistogram();
+    private final LatencyHistogram pdfIntervalo = new LatencyHistogram();
+
+    private final LongAdder enviados = new LongAdder();
+    private final LongAdder recibidos = new LongAdder();
+    private final LongAdder bytesRecibidos = new LongAdder();
+    private final LongAdder pdfRechazados = new LongAdder();
+    private final LongAdder limitados = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+    private final LongAdder[] porOp = {new LongAdder(), new LongAdder(), new LongAdder()};
+
+    // operaciones en vuelo: fileId / título -> instante programado (nanoTime)
+    private final Map<String, Long> subidasPendientes = new ConcurrentHashMap<>();
+    private final Map<String, Long> pdfsPendientes = new ConcurrentHashMap<>();
+
+    private final class Usuario {
+        final String name;
+        final String room;
+        final AtomicReference<Session> ref = new AtomicReference<>();
+
+        Usuario(int i) {
+            this.name = "lg-" + i;
+            this.room = "load-" + (i / roomSize);
+        }
+    }
+
+    LoadGenerator(URI uri, int sessions, int rate, int durationSec, String mix, int roomSize,
+                  int reportSec, int drainSec, int connectParallelism, int uploadSize) {
+        this.uri = uri;
+        this.sessions = sessions;
+        this.rate = rate;
+        this.durationSec = durationSec;
+        this.roomSize = Math.max(1, roomSize);
+        this.reportSec = Math.max(1, reportSec);
+        this.drainSec = drainSec;
+        this.connectParallelism = Math.max(1, connectParallelism);
+        this.uploadSize = uploadSize;
+        this.mezcla = parseMix(mix);
+    }
+
+    static LoadGenerator fromSystemProperties() {
+        return new LoadGenerator(
+                URI.create(System.getProperty("chat.server.uri", "ws://localhost:8080/ws/chat")),
+                Integer.getInteger("chat.load.sessions", 1000),
+                Integer.getInteger("chat.load.rate", 500),
+                Integer.getInteger("chat.load.duration.s", 30),
+                System.getProperty("chat.load.mix", "say:94,upload:3,pdf:3"),
+                Integer.getInteger("chat.load.room.size", 20),
+                Integer.getInteger("chat.load.report.s", 5),
+                Integer.getInteger("chat.load.drain.s", 5),
+                Integer.getInteger("chat.load.connect.parallelism", 16),
+                Integer.getInteger("chat.load.upload.size", 64 * 1024));
+    }
+
+    void run() throws Exception {
+        ChatClient.verbose = false;
+        File fichero = File.createTempFile("chat-load-", ".bin");
+        fichero.deleteOnExit();
+        byte[] datos = new byte[uploadSize];
+        ThreadLocalRandom.current().nextBytes(datos);
+        Files.write(fichero.toPath(), datos);
+
+        List<Usuario> usuarios = conectar();
+        if (usuarios.isEmpty()) {
+            System.err.println("No se pudo abrir ninguna sesión contra " + uri);
+            System.exit(1);
+        }
+        System.out.printf("Carga: %d sesiones, %d ops/s durante %d s (mezcla %s)%n",
+                usuarios.size(), rate, durationSec, System.getProperty("chat.load.mix", "say:94,upload:3,pdf:3"));
+
+        long intervalo = 1_000_000_000L / Math.max(1, rate);
+        long inicio = System.nanoTime();
+        long fin = inicio + TimeUnit.SECONDS.toNanos(durationSec);
+        long siguienteReporte = inicio + TimeUnit.SECONDS.toNanos(reportSec);
+        long enviadosAntes = 0;
+        long recibidosAntes = 0;
+        long retrasoMax = 0;
+        for (long i = 0; ; i++) {
+            long programado = inicio + i * intervalo;
+            if (programado >= fin) break;
+            long espera = programado - System.nanoTime();
+            if (espera > 0) {
+                LockSupport.parkNanos(espera);
+            } else {
+                retrasoMax = Math.max(retrasoMax, -espera);
+            }
+            Usuario u = usuarios.get((int) (i % usuarios.size()));
+            Op op = mezcla[ThreadLocalRandom.current().nextInt(mezcla.length)];
+            enviar(u, op, programado, fichero);
+
+            long ahora = System.nanoTime();
+            if (ahora >= siguienteReporte) {
+                long env = enviados.sum();
+                long rec = recibidos.sum();
+                System.out.printf("[%3ds] enviados %d/s recibidos %d/s | say %s | upload %s | pdf %s%n",
+                        TimeUnit.NANOSECONDS.toSeconds(ahora - inicio),
+                        (env - enviadosAntes) / reportSec, (rec - recibidosAntes) / reportSec,
+                        corto(sayIntervalo), corto(uploadIntervalo), corto(pdfIntervalo));
+                sayIntervalo.reset();
+                uploadIntervalo.reset();
+                pdfIntervalo.reset();
+                enviadosAntes = env;
+                recibidosAntes = rec;
+                siguienteReporte += TimeUnit.SECONDS.toNanos(reportSec);
+            }
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        // esperar las respuestas en vuelo
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSec);
+        while ((!subidasPendientes.isEmpty() || !pdfsPendientes.isEmpty()) && System.nanoTime() < limite) {
+            Thread.sleep(100);
+        }
+
+        System.out.println("=== Resultado ===");
+        System.out.printf("Sesiones: %d  Duración: %.1f s  Retraso máx. del generador: %.2f ms%n",
+                usuarios.size(), segundos, retrasoMax / 1e6);
+        System.out.printf("Enviados: %d (%.0f/s)  say=%d upload=%d pdf=%d%n", enviados.sum(), enviados.sum() / segundos,
+                porOp[Op.SAY.ordinal()].sum(), porOp[Op.UPLOAD.ordinal()].sum(), porOp[Op.PDF.ordinal()].sum());
+        System.out.printf("Recibidos: %d (%.0f/s, %.1f MB)%n", recibidos.sum(), recibidos.sum() / segundos,
+                bytesRecibidos.sum() / (1024.0 * 1024.0));
+        System.out.println("say    (entrega por miembro): " + sayTotal);
+        System.out.println("upload (start -> done):       " + uploadTotal);
+        System.out.println("pdf    (create -> respuesta): " + pdfTotal);
+        System.out.printf("Sin respuesta: subidas=%d pdfs=%d  PDFs rechazados: %d  Limitados: %d  Errores: %d%n",
+                subidasPendientes.size(), pdfsPendientes.size(), pdfRechazados.sum(), limitados.sum(), errores.sum());
+
+        for (Usuario u : usuarios) {
+            Session s = u.ref.get();
+            try {
+                if (s != null && s.isOpen()) s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        System.exit(0);
+    }
+
+    private List<Usuario> conectar() throws InterruptedException {
+        // Tyrus: un único transporte (y pool de hilos) compartido por todas las sesiones, no uno por conexión
+        if (System.getProperty("org.glassfish.tyrus.client.sharedContainer") == null) {
+            System.setProperty("org.glassfish.tyrus.client.sharedContainer", "true");
+        }
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        ExecutorService pool = Executors.newFixedThreadPool(connectParallelism);
+        List<Future<Usuario>> futuros = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Usuario u = new Usuario(i);
+            futuros.add(pool.submit(() -> {
+                container.connectToServer(endpoint(u), ChatClient.clientConfig(), uri);
+                Session s = u.ref.get();
+                s.getAsyncRemote().sendText(ChatClient.mensajeJoin(u.name, u.room));
+                return u;
+            }));
+        }
+        List<Usuario> conectados = new ArrayList<>(sessions);
+        for (Future<Usuario> f : futuros) {
+            try {
+                conectados.add(f.get());
+            } catch (Exception e) {
+                errores.increment();
+            }
+        }
+        pool.shutdown();
+        if (conectados.size() < sessions) {
+            System.err.printf("Solo se conectaron %d de %d sesiones%n", conectados.size(), sessions);
+        }
+        return conectados;
+    }
+
+    private Endpoint endpoint(Usuario u) {
+        return new Endpoint() {
+            @Override
+            public void onOpen(Session session, EndpointConfig config) {
+                u.ref.set(session);
+                session.addMessageHandler(new MessageHandler.Whole<String>() {
+                    @Override
+                    public void onMessage(String message) {
+                        recibir(u, message);
+                    }
+                });
+                session.addMessageHandler(ByteBuffer.class, new MessageHandler.Whole<ByteBuffer>() {
+                    @Override
+                    public void onMessage(ByteBuffer message) {
+                        recibirBinario(message);
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(Session session, CloseReason closeReason) {
+                u.ref.set(null);
+            }
+
+            @Override
+            public void onError(Session session, Throwable thr) {
+                errores.increment();
+            }
+        };
+    }
+
+    private void enviar(Usuario u, Op op, long programado, File fichero) {
+        Session s = u.ref.get();
+        if (s == null || !s.isOpen()) {
+            errores.increment();
+            return;
+        }
+        try {
+            switch (op) {
+                case SAY:
+                    ChatClient.enviarChat(s, u.room, u.name, MARCA + programado);
+                    break;
+                case UPLOAD:
+                    String fileId = UUID.randomUUID().toString();
+                    subidasPendientes.put(fileId, programado);
+                    ChatClient.subirArchivo(s, fileId, fichero);
+                    break;
+                case PDF:
+                    String title = MARCA + programado;
+                    pdfsPendientes.put(title, programado);
+                    s.getAsyncRemote().sendText(ChatClient.mensajePdf(title, u.name, u.room));
+                    break;
+            }
+            enviados.increment();
+            porOp[op.ordinal()].increment();
+        } catch (RuntimeException e) {
+            errores.increment();
+        }
+    }
+
+    private void recibir(Usuario u, String message) {
+        long ahora = System.nanoTime();
+        recibidos.increment();
+        bytesRecibidos.add(message.length());
+        JSONObject data;
+        try {
+            data = new JSONObject(message);
+        } catch (Exception e) {
+            errores.increment();
+            return;
+        }
+        String type = data.optString("type", "");
+        if ("chat".equals(type)) {
+            medirChat(data, ahora);
+        } else if ("chat_batch".equals(type)) {
+            JSONArray items = data.optJSONArray("items");
+            for (int i = 0; items != null && i < items.length(); i++) {
+                medirChat(items.getJSONObject(i), ahora);
+            }
+        } else if ("system".equals(type)) {
+            String event = data.optString("event", "");
+            switch (event) {
+                case "upload_status":
+                    ChatClient.onUploadStatus(u.ref, data);
+                    break;
+                case "throttled":
+                    limitados.increment();
+                    ChatClient.onThrottled(u.ref, data);
+                    break;
+                case "upload_rejected":
+                    limitados.increment();
+                    ChatClient.onUploadRejected(u.ref, data);
+                    break;
+                case "upload_done": {
+                    // upload_done llega a todas las sesiones: cuenta solo el primero
+                    String fileId = data.optString("fileId", "");
+                    ChatClient.terminarSubida(fileId);
+                    Long t = subidasPendientes.remove(fileId);
+                    if (t != null) registrar(uploadTotal, uploadIntervalo, ahora, t);
+                    break;
+                }
+                case "pdf_rejected":
+                case "pdf_ready": {
+                    // un rechazo también cuenta como respuesta
+                    if ("pdf_rejected".equals(event)) pdfRechazados.increment();
+                    Long t = pdfsPendientes.remove(data.optString("title", ""));
+                    if (t != null) registrar(pdfTotal, pdfIntervalo, ahora, t);
+                    break;
+                }
+                default:
+            }
+        }
+    }
+
+    private void medirChat(JSONObject chat, long ahora) {
+        String text = chat.optString("text", "");
+        if (text.startsWith(MARCA)) {
+            registrar(sayTotal, sayIntervalo, ahora, Long.parseLong(text.substring(MARCA.length())));
+        }
+    }
+
+    private void recibirBinario(ByteBuffer message) {
+        long ahora = System.nanoTime();
+        recibidos.increment();
+        bytesRecibidos.add(message.remaining());
+        try {
+            BinaryFrame f = BinaryFrame.decode(message);
+            if (f.type != BinaryFrame.CHAT) return;
+            String text = f.chatText();
+            if (text.startsWith(MARCA)) {
+                registrar(sayTotal, sayIntervalo, ahora, Long.parseLong(text.substring(MARCA.length())));
+            }
+        } catch (RuntimeException e) {
+            errores.increment();
+        }
+    }
+
+    private static void registrar(LatencyHistogram total, LatencyHistogram intervalo, long ahora, long programado) {
+        long micros = (ahora - programado) / 1000;
+        total.record(micros);
+        intervalo.record(micros);
+    }
+
+    private static String corto(LatencyHistogram h) {
+        if (h.count() == 0) return "-";
+        return String.format("p50=%.1f p99=%.1f ms", h.percentile(50) / 1000.0, h.percentile(99) / 1000.0);
+    }
+
+    /** "say:94,upload:3,pdf:3" -> tabla de 100 entradas (o la suma de pesos) para elegir al azar. */
+    private static Op[] parseMix(String mix) {
+        List<Op> tabla = new ArrayList<>();
+        for (String parte : mix.split(",")) {
+            if (parte.isBlank()) continue;
+            String[] kv = parte.trim().split(":");
+            Op op = Op.valueOf(kv[0].trim().toUpperCase());
+            int peso = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            for (int i = 0; i < peso; i++) {
+                tabla.add(op);
+            }
+        }
+        if (tabla.isEmpty()) throw new IllegalArgumentException("chat.load.mix vacío: " + mix);
+        return tabla.toArray(new Op[0]);
+    }
+}
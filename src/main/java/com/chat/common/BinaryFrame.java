@@ -0,0 +1,124 @@
+package com.chat.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binario opcional "chat.bin.v1", negociado como subprotocolo WebSocket. El JSON sigue
+ * siendo el formato por defecto y el de todos los eventos de sistema; el binario cubre los caminos
+ * calientes: chunks de subida (cabecera + datos en un solo frame, sin upload_chunk_meta), upload_end, chat
+ * y los trozos de descarga que envía el servidor.
+ * <pre>
+ * [byte type][byte flags][short idLen][long seq][long offset][int length][id UTF-8][payload]
+ * </pre>
+ * - id: fileId (CHUNK, UPLOAD_END), sala (CHAT) o hash SHA-256 del fichero (DOWNLOAD_CHUNK)
+ * - payload de CHAT: [short userLen][user UTF-8][texto UTF-8]; seq lo asigna el servidor
+ * - flags: {@link #FLAG_DEFLATE} en un CHUNK indica payload deflate crudo (ver {@link ChunkCompressor});
+ *   offset sigue siendo el del fichero sin comprimir
+ * Todo big-endian (el orden por defecto de ByteBuffer).
+ */
+public final class BinaryFrame {
+
+    public static final String SUBPROTOCOL = "chat.bin.v1";
+    public static final int HEADER_SIZE = 24;
+    public static final int MAX_ID_BYTES = 1024;
+
+    public static final byte CHUNK = 1;
+    public static final byte UPLOAD_END = 2;
+    public static final byte CHAT = 3;
+    public static final byte DOWNLOAD_CHUNK = 4;
+
+    public static final byte FLAG_DEFLATE = 0x01;
+
+    public final byte type;
+    public final byte flags;
+    public final String id;
+    public final long seq;
+    public final long offset;
+    /** Vista sobre el frame recibido (sin copia). */
+    public final ByteBuffer payload;
+
+    private BinaryFrame(byte type, byte flags, String id, long seq, long offset, ByteBuffer payload) {
+        this.type = type;
+        this.flags = flags;
+        this.id = id;
+        this.seq = seq;
+        this.offset = offset;
+        this.payload = payload;
+    }
+
+    /** Decodifica un frame; el payload es un slice del buffer recibido. */
+    public static BinaryFrame decode(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE) throw new IllegalArgumentException("frame binario corto: " + buf.remaining());
+        byte type = buf.get();
+        byte flags = buf.get();
+        int idLen = Short.toUnsignedInt(buf.getShort());
+        long seq = buf.getLong();
+        long offset = buf.getLong();
+        int length = buf.getInt();
+        if (idLen > MAX_ID_BYTES || length < 0 || buf.remaining() != idLen + length) {
+            throw new IllegalArgumentException("cabecera binaria inválida (id=" + idLen + ", length=" + length
+                    + ", restante=" + buf.remaining() + ")");
+        }
+        byte[] idBytes = new byte[idLen];
+        buf.get(idBytes);
+        ByteBuffer payload = buf.slice();
+        payload.limit(length);
+        return new BinaryFrame(type, flags, new String(idBytes, StandardCharsets.UTF_8), seq, offset, payload);
+    }
+
+    /** Bytes de cabecera + id para este id (para dimensionar buffers de envío). */
+    public static int headerSize(String id) {
+        return HEADER_SIZE + id.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Escribe cabecera + id en la posición actual de {@code buf}; el llamador escribe
+     * después exactamente {@code length} bytes de payload.
+     */
+    public static void writeHeader(ByteBuffer buf, byte type, byte flags, String id, long seq, long offset, int length) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > MAX_ID_BYTES) throw new IllegalArgumentException("id demasiado largo: " + idBytes.length);
+        buf.put(type).put(flags).putShort((short) idBytes.length).putLong(seq).putLong(offset).putInt(length).put(idBytes);
+    }
+
+    /** Frame sin payload (p.ej. UPLOAD_END), listo para enviar. */
+    public static ByteBuffer encode(byte type, String id) {
+        ByteBuffer b = ByteBuffer.allocate(headerSize(id));
+        writeHeader(b, type, (byte) 0, id, 0, 0, 0);
+        return b.flip();
+    }
+
+    /** Frame CHAT completo, listo para enviar. */
+    public static ByteBuffer chat(String room, long seq, String user, String text) {
+        byte[] u = user.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + u.length + t.length;
+        ByteBuffer b = ByteBuffer.allocate(headerSize(room) + length);
+        writeHeader(b, CHAT, (byte) 0, room, seq, 0, length);
+        b.putShort((short) u.length).put(u).put(t);
+        return b.flip();
+    }
+
+    public boolean deflated() {
+        return (flags & FLAG_DEFLATE) != 0;
+    }
+
+    /** Usuario de un frame CHAT. */
+    public String chatUser() {
+        ByteBuffer p = payload.duplicate();
+        byte[] u = new byte[Short.toUnsignedInt(p.getShort())];
+        p.get(u);
+        return new String(u, StandardCharsets.UTF_8);
+    }
+
+    /** Texto de un frame CHAT. */
+    public String chatText() {
+        ByteBuffer p = payload.duplicate();
+        int userLen = Short.toUnsignedInt(p.getShort());
+        p.position(p.position() + userLen);
+        byte[] t = new byte[p.remaining()];
+        p.get(t);
+        return new String(t, StandardCharsets.UTF_8);
+    }
+}
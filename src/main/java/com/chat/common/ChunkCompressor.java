@@ -0,0 +1,155 @@
+package com.chat.common;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión opcional de chunks de subida según contenido (-Dchat.upload.compress=true en el cliente).
+ * - Cada chunk se comprime por separado (deflate crudo con FINISH): se puede reenviar o llegar en
+ *   cualquier orden sin depender de los anteriores
+ * - No se comprimen ficheros ya comprimidos por extensión (zip, gz, jpg, png, mp4, pdf...) ni chunks
+ *   de menos de -Dchat.upload.compress.min.bytes (4096)
+ * - Si la salida no baja de -Dchat.upload.compress.max.ratio (90%) del original, el chunk va sin comprimir;
+ *   tras dos chunks seguidos así se deja de intentar con el resto del fichero
+ * - Nivel con -Dchat.upload.compress.level (1 = el más rápido)
+ * Una instancia por subida y hilo; el servidor descomprime con {@link #inflate(ByteBuffer, int)}, nunca a más
+ * de {@link #MAX_INFLATED_BYTES} por chunk.
+ */
+public final class ChunkCompressor {
+
+    public static final boolean ENABLED = Boolean.getBoolean("chat.upload.compress");
+    private static final int MIN_BYTES = Integer.getInteger("chat.upload.compress.min.bytes", 4096);
+    private static final int LEVEL = Math.max(1, Math.min(9, Integer.getInteger("chat.upload.compress.level", Deflater.BEST_SPEED)));
+    private static final int MAX_RATIO = Math.max(1, Math.min(100, Integer.getInteger("chat.upload.compress.max.ratio", 90)));
+    private static final int MAX_FAILURES = 2;
+    /** Tope fijo de un chunk descomprimido, pida lo que pida el llamante. */
+    public static final int MAX_INFLATED_BYTES = 1024 * 1024;
+    // el buffer del hilo se guarda hasta este tamaño; para chunks mayores se usa uno de un solo uso
+    private static final int CACHED_INFLATE_BYTES = 256 * 1024;
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a", "mp4", "m4v", "mkv", "webm", "mov", "avi",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "epub");
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<ByteBuffer[]> INFLATE_BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[1]);
+
+    private final Deflater deflater;
+    private boolean active;
+    private int failures;
+    private long rawBytes;
+    private long wireBytes;
+    private long chunks;
+    private long nanos;
+
+    private ChunkCompressor(boolean active) {
+        this.active = active;
+        this.deflater = active ? new Deflater(LEVEL, true) : null;
+    }
+
+    /** Compresor para el fichero {@code name}: inactivo si está desactivado o el tipo ya va comprimido. */
+    public static ChunkCompressor forFile(String name) {
+        return new ChunkCompressor(ENABLED && compressible(name));
+    }
+
+    /** false para extensiones de formatos que ya van comprimidos. */
+    public static boolean compressible(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return true;
+        return !COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public boolean active() {
+        return active;
+    }
+
+    /**
+     * Comprime {@code len} bytes de {@code src} en {@code dst} (que debe tener al menos {@code len} bytes).
+     * Devuelve la longitud comprimida, o -1 si el chunk debe ir sin comprimir.
+     */
+    public int compress(byte[] src, int off, int len, byte[] dst) {
+        if (!active || len < MIN_BYTES) return -1;
+        long t0 = System.nanoTime();
+        int limit = (int) ((long) len * MAX_RATIO / 100);
+        deflater.reset();
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < limit) {
+            n += deflater.deflate(dst, n, limit - n);
+        }
+        nanos += System.nanoTime() - t0;
+        if (!deflater.finished()) {
+            // no compensa: el contenido ya está comprimido o es aleatorio
+            if (++failures >= MAX_FAILURES) active = false;
+            return -1;
+        }
+        failures = 0;
+        chunks++;
+        rawBytes += len;
+        wireBytes += n;
+        return n;
+    }
+
+    /** Chunks enviados comprimidos. */
+    public long chunks() {
+        return chunks;
+    }
+
+    public long rawBytes() {
+        return rawBytes;
+    }
+
+    public long wireBytes() {
+        return wireBytes;
+    }
+
+    /** CPU gastada comprimiendo (incluidos los intentos que no compensaron), en nanosegundos. */
+    public long nanos() {
+        return nanos;
+    }
+
+    public void end() {
+        if (deflater != null) deflater.end();
+    }
+
+    /** Resumen para consola: bytes antes/después, porcentaje y CPU. */
+    public String summary() {
+        return String.format("%d chunks comprimidos, %d -> %d bytes (%.1f%%), %.1f ms de CPU",
+                chunks, rawBytes, wireBytes, rawBytes == 0 ? 100.0 : wireBytes * 100.0 / rawBytes, nanos / 1e6);
+    }
+
+    /**
+     * Descomprime un chunk. El resultado puede ser un buffer del hilo que se reutiliza en la siguiente
+     * llamada: hay que consumirlo antes. Falla si el chunk descomprimido pasa de {@code maxBytes}
+     * (acotado a {@link #MAX_INFLATED_BYTES}).
+     */
+    public static ByteBuffer inflate(ByteBuffer src, int maxBytes) throws DataFormatException {
+        maxBytes = Math.max(0, Math.min(maxBytes, MAX_INFLATED_BYTES));
+        ByteBuffer[] holder = INFLATE_BUFFERS.get();
+        ByteBuffer out = holder[0];
+        // un byte de holgura para que el final del stream quepa aunque el chunk mida justo maxBytes
+        if (out == null || out.capacity() < maxBytes + 1) {
+            out = ByteBuffer.allocate(maxBytes + 1);
+            if (out.capacity() <= CACHED_INFLATE_BYTES) holder[0] = out;
+        }
+        out.clear().limit(maxBytes + 1);
+        Inflater inf = INFLATERS.get();
+        inf.reset();
+        inf.setInput(src);
+        while (!inf.finished()) {
+            if (!out.hasRemaining()) break;
+            if (inf.inflate(out) == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                throw new DataFormatException("chunk comprimido incompleto");
+            }
+        }
+        if (out.position() > maxBytes) throw new DataFormatException("chunk descomprimido mayor que " + maxBytes + " bytes");
+        return out.flip();
+    }
+}
@@ -0,0 +1,133 @@
+package com.chat.common;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ExecutorService que delega en otro y cuenta tareas encoladas, activas, completadas
+ * y rechazadas. La saturación es activas / hilos del pool (-1 si el pool no tiene
+ * límite, como con hilos virtuales).
+ */
+public final class InstrumentedExecutor extends AbstractExecutorService {
+
+    private final String name;
+    private final Workers.Mode mode;
+    private final ExecutorService delegate;
+    private final int parallelism;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
+    private final AtomicLong maxQueued = new AtomicLong();
+
+    InstrumentedExecutor(String name, Workers.Mode mode, ExecutorService delegate, int parallelism) {
+        this.name = name;
+        this.mode = mode;
+        this.delegate = delegate;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.increment();
+        long q = queued.incrementAndGet();
+        maxQueued.accumulateAndGet(q, Math::max);
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Workers.Mode mode() {
+        return mode;
+    }
+
+    /** Hilos del pool, o -1 si no hay límite. */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /** Tareas enviadas que aún no empezaron. */
+    public long queueDepth() {
+        return queued.get();
+    }
+
+    public long maxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public long activeCount() {
+        return active.get();
+    }
+
+    public long submittedCount() {
+        return submitted.sum();
+    }
+
+    public long completedCount() {
+        return completed.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /** Fracción de hilos ocupados (0..1), o -1 si el pool no tiene límite. */
+    public double saturation() {
+        return parallelism > 0 ? Math.min(1.0, (double) active.get() / parallelism) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[mode=%s, threads=%d, active=%d, queued=%d, maxQueued=%d, completed=%d, rejected=%d]",
+                name, mode, parallelism, activeCount(), queueDepth(), maxQueueDepth(), completedCount(), rejectedCount());
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,142 @@
+package com.chat.common;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logger asíncrono con nivel mínimo (-Dchat.logging.level=DEBUG|INFO|WARN|ERROR|OFF, por defecto INFO).
+ * - Los hilos que loguean solo comprueban el nivel y encolan (sin formatear ni tocar stdout):
+ *   el formateo y la escritura los hace un único hilo "chat-log-writer"
+ * - Cola acotada (-Dchat.logging.queue, 8192): si se llena, la línea se descarta y se cuenta en {@link #dropped()}
+ * - El formato usa {@link String#format} y solo se aplica si hay argumentos
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("chat.logging.level", "INFO"));
+    private static final BlockingQueue<Entry> QUEUE =
+            new ArrayBlockingQueue<>(Math.max(16, Integer.getInteger("chat.logging.queue", 8192)));
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final class Entry {
+        final Level level;
+        final long millis;
+        final String thread;
+        final String format;
+        final Object[] args;
+
+        Entry(Level level, long millis, String thread, String format, Object[] args) {
+            this.level = level;
+            this.millis = millis;
+            this.thread = thread;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Log::drainLoop, "chat-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // lo que quede en la cola al salir se escribe antes de terminar
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "chat-log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL == Level.DEBUG;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= LEVEL.ordinal() && level != Level.OFF;
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /** Líneas descartadas porque la cola estaba llena. */
+    public static long dropped() {
+        return DROPPED.sum();
+    }
+
+    public static int queued() {
+        return QUEUE.size();
+    }
+
+    private static void log(Level level, String format, Object[] args) {
+        if (!isEnabled(level)) return;
+        Entry e = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(), format, args);
+        if (!QUEUE.offer(e)) DROPPED.increment();
+    }
+
+    private static void drainLoop() {
+        List<Entry> batch = new ArrayList<>(256);
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch, 255);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /** Escribe ya lo que quede en la cola (p.ej. al final de una parada ordenada). */
+    public static synchronized void flush() {
+        List<Entry> batch = new ArrayList<>();
+        QUEUE.drainTo(batch);
+        write(batch);
+    }
+
+    private static synchronized void write(List<Entry> batch) {
+        boolean out = false;
+        boolean err = false;
+        for (Entry e : batch) {
+            PrintStream ps = e.level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+            String msg;
+            try {
+                msg = e.args == null || e.args.length == 0 ? e.format : String.format(e.format, e.args);
+            } catch (RuntimeException ex) {
+                msg = e.format;
+            }
+            ps.print(TIME.format(Instant.ofEpochMilli(e.millis)) + " " + e.level + " [" + e.thread + "] " + msg + System.lineSeparator());
+            if (ps == System.err) err = true; else out = true;
+        }
+        if (out) System.out.flush();
+        if (err) System.err.flush();
+    }
+
+    private static Level parseLevel(String s) {
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.chat.common;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Extension;
+import org.glassfish.tyrus.core.TyrusExtension;
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.CloseFrame;
+import org.glassfish.tyrus.core.frame.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Extensión WebSocket permessage-deflate (RFC 7692) para Tyrus, usada por el servidor y por el cliente.
+ * - -Dchat.ws.deflate=false la desactiva (no se ofrece ni se acepta)
+ * - -Dchat.ws.deflate.level (0-9, por defecto 1): nivel de Deflater; más nivel, más CPU por byte ahorrado
+ * - -Dchat.ws.deflate.min.bytes (256): los mensajes más cortos salen sin comprimir (RSV1=0)
+ * - -Dchat.ws.deflate.context.takeover=false: se reinicia el diccionario en cada mensaje
+ *   (peor ratio, pero sin estado entre mensajes)
+ * - -Dchat.ws.deflate.binary=true: comprime también mensajes binarios; por defecto solo texto, porque los
+ *   chunks de subida ya pasan por su propia compresión según contenido ({@link ChunkCompressor})
+ * - -Dchat.ws.inflate.max.bytes (por defecto -Dchat.server.incoming.buffer, 4 MiB): tope de un mensaje entrante
+ *   descomprimido; al pasarlo se deja de descomprimir y la conexión se cierra con 1009 (el buffer de entrada
+ *   solo limita los bytes comprimidos)
+ * La ventana es siempre de 15 bits (Deflater/Inflater de la JDK no permiten otra): las ofertas con
+ * server_max_window_bits &lt; 15 se rechazan con {@link #acceptable(Extension)}.
+ * El estado (Deflater/Inflater) vive en el contexto de cada conexión; la instancia es compartida.
+ */
+public final class PerMessageDeflate implements ExtendedExtension {
+
+    public static final String NAME = "permessage-deflate";
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.ws.deflate", "true"));
+    private static final int LEVEL = Math.max(0, Math.min(9, Integer.getInteger("chat.ws.deflate.level", Deflater.BEST_SPEED)));
+    private static final int MIN_BYTES = Integer.getInteger("chat.ws.deflate.min.bytes", 256);
+    private static final boolean CONTEXT_TAKEOVER =
+            Boolean.parseBoolean(System.getProperty("chat.ws.deflate.context.takeover", "true"));
+    private static final boolean BINARY = Boolean.getBoolean("chat.ws.deflate.binary");
+    private static final int MAX_INFLATED = Integer.getInteger("chat.ws.inflate.max.bytes",
+            Integer.getInteger("chat.server.incoming.buffer", 4 * 1024 * 1024));
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private static final byte OP_CONTINUATION = 0x0;
+    private static final byte OP_TEXT = 0x1;
+    private static final byte OP_BINARY = 0x2;
+
+    // Totales del proceso (todas las conexiones): bytes antes/después y CPU gastada en cada sentido
+    private static final LongAdder RAW_OUT = new LongAdder();
+    private static final LongAdder WIRE_OUT = new LongAdder();
+    private static final LongAdder DEFLATE_NANOS = new LongAdder();
+    private static final LongAdder WIRE_IN = new LongAdder();
+    private static final LongAdder RAW_IN = new LongAdder();
+    private static final LongAdder INFLATE_NANOS = new LongAdder();
+    private static final LongAdder SKIPPED = new LongAdder();
+
+    private static final PerMessageDeflate INSTANCE = new PerMessageDeflate();
+
+    /** Estado por conexión, guardado en las propiedades del ExtensionContext. */
+    private static final class State {
+        final Deflater deflater = new Deflater(LEVEL, true);
+        final Inflater inflater = new Inflater(true);
+        final boolean resetDeflater;
+        // buffers separados: lectura y escritura pueden ir en hilos distintos
+        final byte[] inBuffer = new byte[8192];
+        final byte[] outBuffer = new byte[8192];
+        // el mensaje saliente/entrante en curso va comprimido (para los frames de continuación)
+        boolean compressingOut;
+        boolean compressedIn;
+        // bytes ya descomprimidos del mensaje entrante en curso; rejected = la conexión se está cerrando
+        long inflatedIn;
+        boolean rejected;
+
+        State(boolean resetDeflater) {
+            this.resetDeflater = resetDeflater;
+        }
+    }
+
+    private PerMessageDeflate() {
+    }
+
+    public static PerMessageDeflate instance() {
+        return INSTANCE;
+    }
+
+    /** Extensiones a ofrecer desde el cliente (vacío si está desactivada). */
+    public static List<Extension> clientExtensions() {
+        return ENABLED ? List.of(INSTANCE) : List.of();
+    }
+
+    /** Una oferta del cliente es aceptable si no nos pide una ventana menor que 15 bits. */
+    public static boolean acceptable(Extension offer) {
+        for (Extension.Parameter p : offer.getParameters()) {
+            if (SERVER_MAX_WINDOW_BITS.equals(p.getName())) {
+                try {
+                    if (Integer.parseInt(p.getValue().trim()) < 15) return false;
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /** Parámetros de la oferta del cliente. */
+    @Override
+    public List<Parameter> getParameters() {
+        return CONTEXT_TAKEOVER ? List.of() : List.of(new TyrusExtension.TyrusParameter(CLIENT_NO_CONTEXT_TAKEOVER, null));
+    }
+
+    /** Servidor: acepta la oferta y responde con los parámetros que aplicará. */
+    @Override
+    public List<Parameter> onExtensionNegotiation(ExtensionContext context, List<Parameter> requestedParameters) {
+        boolean reset = !CONTEXT_TAKEOVER;
+        for (Parameter p : requestedParameters) {
+            if (SERVER_NO_CONTEXT_TAKEOVER.equals(p.getName())) reset = true;
+        }
+        context.getProperties().put(NAME, new State(reset));
+        List<Parameter> response = new ArrayList<>(1);
+        if (reset) response.add(new TyrusExtension.TyrusParameter(SERVER_NO_CONTEXT_TAKEOVER, null));
+        return response;
+    }
+
+    /** Cliente: el servidor aceptó; client_no_context_takeover en la respuesta obliga a reiniciar. */
+    @Override
+    public void onHandshakeResponse(ExtensionContext context, List<Parameter> responseParameters) {
+        boolean reset = !CONTEXT_TAKEOVER;
+        for (Parameter p : responseParameters) {
+            if (CLIENT_NO_CONTEXT_TAKEOVER.equals(p.getName())) reset = true;
+        }
+        context.getProperties().put(NAME, new State(reset));
+    }
+
+    @Override
+    public Frame processIncoming(ExtensionContext context, Frame frame) {
+        State st = (State) context.getProperties().get(NAME);
+        if (st == null || frame.isControlFrame()) return frame;
+        if (st.rejected) return close(CloseReason.CloseCodes.TOO_BIG, "mensaje demasiado grande");
+        if (frame.getOpcode() != OP_CONTINUATION) {
+            st.compressedIn = frame.isRsv1();
+            st.inflatedIn = 0;
+        }
+        if (!st.compressedIn) return frame;
+        long t0 = System.nanoTime();
+        byte[] in = frame.getPayloadData();
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(MAX_INFLATED, Math.max(64L, in.length * 3L)));
+        try {
+            // el emisor quitó la cola 00 00 ff ff del último frame del mensaje
+            if (!inflate(st, in, out) || (frame.isFin() && !inflate(st, TAIL, out))) {
+                // Tyrus ignora las excepciones de las extensiones: se devuelve un close en lugar del frame
+                st.rejected = true;
+                INFLATE_NANOS.add(System.nanoTime() - t0);
+                WIRE_IN.add(in.length);
+                return close(CloseReason.CloseCodes.TOO_BIG, "mensaje descomprimido mayor que " + MAX_INFLATED + " bytes");
+            }
+        } catch (DataFormatException e) {
+            st.rejected = true;
+            return close(CloseReason.CloseCodes.PROTOCOL_ERROR, "permessage-deflate: datos comprimidos inválidos");
+        }
+        byte[] raw = out.toByteArray();
+        INFLATE_NANOS.add(System.nanoTime() - t0);
+        WIRE_IN.add(in.length);
+        RAW_IN.add(raw.length);
+        return Frame.builder(frame).rsv1(false).payloadData(raw).build();
+    }
+
+    @Override
+    public Frame processOutgoing(ExtensionContext context, Frame frame) {
+        State st = (State) context.getProperties().get(NAME);
+        if (st == null || frame.isControlFrame()) return frame;
+        byte op = frame.getOpcode();
+        if (op != OP_CONTINUATION) {
+            st.compressingOut = (op == OP_TEXT || (op == OP_BINARY && BINARY)) && frame.getPayloadLength() >= MIN_BYTES;
+            if (!st.compressingOut) SKIPPED.increment();
+        }
+        if (!st.compressingOut) return frame;
+        long t0 = System.nanoTime();
+        byte[] in = frame.getPayloadData();
+        byte[] wire;
+        synchronized (st.deflater) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, in.length / 2));
+            st.deflater.setInput(in);
+            int n;
+            do {
+                n = st.deflater.deflate(st.outBuffer, 0, st.outBuffer.length, Deflater.SYNC_FLUSH);
+                out.write(st.outBuffer, 0, n);
+            } while (n == st.outBuffer.length);
+            wire = out.toByteArray();
+            if (frame.isFin()) {
+                // fin de mensaje: se quita la cola del SYNC_FLUSH (RFC 7692, 7.2.1)
+                if (wire.length >= 4) wire = Arrays.copyOf(wire, wire.length - 4);
+                if (st.resetDeflater) st.deflater.reset();
+            }
+        }
+        DEFLATE_NANOS.add(System.nanoTime() - t0);
+        RAW_OUT.add(in.length);
+        WIRE_OUT.add(wire.length);
+        // RSV1 solo en el primer frame del mensaje
+        return Frame.builder(frame).rsv1(op != OP_CONTINUATION).payloadData(wire).build();
+    }
+
+    @Override
+    public void destroy(ExtensionContext context) {
+        State st = (State) context.getProperties().remove(NAME);
+        if (st != null) {
+            synchronized (st.deflater) {
+                st.deflater.end();
+            }
+            st.inflater.end();
+        }
+    }
+
+    /** Descomprime in en out; false si el mensaje pasa de MAX_INFLATED (se deja de descomprimir). */
+    private static boolean inflate(State st, byte[] in, ByteArrayOutputStream out) throws DataFormatException {
+        st.inflater.setInput(in);
+        int n;
+        do {
+            n = st.inflater.inflate(st.inBuffer);
+            st.inflatedIn += n;
+            if (st.inflatedIn > MAX_INFLATED) return false;
+            out.write(st.inBuffer, 0, n);
+        } while (n > 0);
+        return true;
+    }
+
+    /** Frame de cierre que Tyrus procesa como si lo hubiera enviado el otro extremo. */
+    private static Frame close(CloseReason.CloseCode code, String reason) {
+        return new CloseFrame(new CloseReason(code, reason));
+    }
+
+    /** Bytes de mensajes salientes antes de comprimir. */
+    public static long rawBytesOut() {
+        return RAW_OUT.sum();
+    }
+
+    /** Bytes salientes comprimidos (lo que realmente va por la red). */
+    public static long wireBytesOut() {
+        return WIRE_OUT.sum();
+    }
+
+    public static long rawBytesIn() {
+        return RAW_IN.sum();
+    }
+
+    public static long wireBytesIn() {
+        return WIRE_IN.sum();
+    }
+
+    /** CPU gastada comprimiendo, en segundos. */
+    public static double deflateSeconds() {
+        return DEFLATE_NANOS.sum() / 1e9;
+    }
+
+    public static double inflateSeconds() {
+        return INFLATE_NANOS.sum() / 1e9;
+    }
+
+    /** Mensajes que salieron sin comprimir por tamaño o tipo. */
+    public static long skipped() {
+        return SKIPPED.sum();
+    }
+
+    @Override
+    public String toString() {
+        return NAME + "{level=" + LEVEL + ", minBytes=" + MIN_BYTES + ", contextTakeover=" + CONTEXT_TAKEOVER
+                + ", binary=" + BINARY + "}";
+    }
+}
@@ -0,0 +1,71 @@
+package com.chat.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Modelos de ejecución para trabajo en segundo plano (servidor y cliente).
+ * - PLATFORM: pool fijo de hilos de plataforma (comportamiento original)
+ * - VIRTUAL: un hilo virtual por tarea (Java 21+; en JVMs anteriores cae a PLATFORM con un aviso,
+ *   por eso como valor por defecto se usa {@link #virtualIfAvailable()})
+ * - WORK_STEALING: ForkJoinPool con work-stealing
+ * Todos se envuelven en un {@link InstrumentedExecutor} con métricas de cola y saturación.
+ */
+public final class Workers {
+
+    public enum Mode { PLATFORM, VIRTUAL, WORK_STEALING }
+
+    private Workers() {
+    }
+
+    /** Lee el modo de la propiedad de sistema indicada (platform|virtual|work_stealing). */
+    public static Mode modeFromSystemProperty(String property, Mode defaultMode) {
+        String v = System.getProperty(property);
+        if (v == null || v.isBlank()) return defaultMode;
+        return Mode.valueOf(v.trim().toUpperCase().replace('-', '_'));
+    }
+
+    /** VIRTUAL si la JVM tiene hilos virtuales (21+), si no PLATFORM: el por defecto de quien los prefiere. */
+    public static Mode virtualIfAvailable() {
+        return Runtime.version().feature() >= 21 ? Mode.VIRTUAL : Mode.PLATFORM;
+    }
+
+    public static InstrumentedExecutor create(String name, Mode mode, int poolSize) {
+        int size = Math.max(1, poolSize);
+        switch (mode) {
+            case VIRTUAL: {
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) return new InstrumentedExecutor(name, mode, virtual, -1);
+                Log.warn("Hilos virtuales no disponibles en esta JVM (%s); usando pool de plataforma para %s", Runtime.version(), name);
+                return new InstrumentedExecutor(name, Mode.PLATFORM, Executors.newFixedThreadPool(size, threadFactory(name)), size);
+            }
+            case WORK_STEALING:
+                return new InstrumentedExecutor(name, mode, Executors.newWorkStealingPool(size), size);
+            case PLATFORM:
+            default:
+                return new InstrumentedExecutor(name, Mode.PLATFORM, Executors.newFixedThreadPool(size, threadFactory(name)), size);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // se resuelve por reflexión para seguir compilando con target 17
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
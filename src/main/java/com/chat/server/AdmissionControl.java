@@ -0,0 +1,169 @@
+package com.chat.server;
+
+import jakarta.websocket.Session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Control de admisión del tráfico entrante, antes de parsear nada.
+ * - Por sesión y por usuario: mensajes/s y bytes/s con {@link TokenBucket} (un CAS por bucket, sin locks).
+ *   El estado de la sesión vive en sus userProperties; el de usuario, en un mapa concurrente que se
+ *   purga de buckets inactivos al pasar de -Dchat.ratelimit.users.max (10000). El usuario es la identidad
+ *   ligada a la sesión ({@link ChatEndpoint#identity}): cambiar el "user" de los mensajes no da otro bucket
+ * - Lo que no se admite se descarta y el cliente recibe {"type":"system","event":"throttled",
+ *   "scope":"session|user","limit":"messages|bytes","retryAfterMs":N,"dropped":tipo}, como mucho uno por espera;
+ *   si lo descartado es un mensaje de control de una subida (upload_start, upload_end) el aviso va siempre
+ *   y lleva su "fileId", para que el cliente lo repita
+ * - Tope global de subidas abiertas a la vez (-Dchat.upload.max.concurrent, 64)
+ * Límites: -Dchat.ratelimit.session.msgs (500/s), .session.bytes (33554432/s), .user.msgs (1000/s),
+ * .user.bytes (67108864/s), ráfaga de -Dchat.ratelimit.burst.s (2) segundos; -Dchat.ratelimit.enabled=false los quita.
+ */
+final class AdmissionControl {
+
+    private static final String KEY = "chat.limits";
+
+    private static final Metrics.Family<LongAdder> THROTTLED = Metrics.GLOBAL.counterFamily(
+            "chat_throttled_total", "limit", "Mensajes entrantes rechazados por límite de tasa o de subidas");
+
+    /** Pareja de buckets (mensajes y bytes) de una sesión o un usuario. */
+    private final class Limits {
+        final TokenBucket msgs;
+        final TokenBucket bytes;
+        // hasta cuándo no se repite el aviso throttled (solo en los de sesión)
+        volatile long quietUntil;
+
+        Limits(long msgsPerSec, long bytesPerSec) {
+            this.msgs = new TokenBucket(msgsPerSec, burstSeconds);
+            this.bytes = new TokenBucket(bytesPerSec, burstSeconds);
+        }
+
+        boolean idle(long now) {
+            return msgs.idle(now) && bytes.idle(now);
+        }
+    }
+
+    private final Broadcaster broadcaster;
+    private final boolean enabled;
+    private final long sessionMsgs;
+    private final long sessionBytes;
+    private final long userMsgs;
+    private final long userBytes;
+    private final double burstSeconds;
+    private final int maxUsers;
+    private final int maxUploads;
+    private final Map<String, Limits> users = new ConcurrentHashMap<>();
+    private final AtomicInteger uploads = new AtomicInteger();
+
+    AdmissionControl(Broadcaster broadcaster, boolean enabled, long sessionMsgs, long sessionBytes,
+                     long userMsgs, long userBytes, double burstSeconds, int maxUsers, int maxUploads) {
+        this.broadcaster = broadcaster;
+        this.enabled = enabled;
+        this.sessionMsgs = sessionMsgs;
+        this.sessionBytes = sessionBytes;
+        this.userMsgs = userMsgs;
+        this.userBytes = userBytes;
+        this.burstSeconds = burstSeconds;
+        this.maxUsers = maxUsers;
+        this.maxUploads = maxUploads;
+    }
+
+    static AdmissionControl fromSystemProperties(Broadcaster broadcaster) {
+        return new AdmissionControl(broadcaster,
+                Boolean.parseBoolean(System.getProperty("chat.ratelimit.enabled", "true")),
+                Long.getLong("chat.ratelimit.session.msgs", 500),
+                Long.getLong("chat.ratelimit.session.bytes", 32L * 1024 * 1024),
+                Long.getLong("chat.ratelimit.user.msgs", 1000),
+                Long.getLong("chat.ratelimit.user.bytes", 64L * 1024 * 1024),
+                Double.parseDouble(System.getProperty("chat.ratelimit.burst.s", "2")),
+                Integer.getInteger("chat.ratelimit.users.max", 10_000),
+                Integer.getInteger("chat.upload.max.concurrent", 64));
+    }
+
+    void register(Session session) {
+        if (enabled) session.getUserProperties().put(KEY, new Limits(sessionMsgs, sessionBytes));
+    }
+
+    /**
+     * Admite (y descuenta) un mensaje de {@code bytes} bytes de la sesión; si no, avisa al cliente.
+     * {@code type} es el tipo del mensaje y {@code fileId} la subida a la que pertenece si es de control (o null).
+     */
+    boolean admit(Session session, long bytes, String type, String fileId) {
+        if (!enabled) return true;
+        Limits sl = (Limits) session.getUserProperties().get(KEY);
+        if (sl == null) return true;
+        long now = System.nanoTime();
+        long wait = sl.msgs.tryAcquire(1, now);
+        if (wait > 0) return reject(session, sl, "session", "messages", wait, now, type, fileId);
+        wait = sl.bytes.tryAcquire(bytes, now);
+        if (wait > 0) {
+            // lo descartado no cuenta: si no, los rechazos vaciarían el otro bucket
+            sl.msgs.refund(1);
+            return reject(session, sl, "session", "bytes", wait, now, type, fileId);
+        }
+        // la identidad que fijó el servidor en el join o el primer chat (no el "user" de cada mensaje);
+        // hasta entonces solo cuenta la sesión
+        Object user = session.getUserProperties().get(ChatEndpoint.USER_KEY);
+        if (user == null) return true;
+        Limits ul = userLimits(user.toString(), now);
+        String limit = "messages";
+        wait = ul.msgs.tryAcquire(1, now);
+        if (wait <= 0) {
+            limit = "bytes";
+            wait = ul.bytes.tryAcquire(bytes, now);
+            if (wait <= 0) return true;
+            ul.msgs.refund(1);
+        }
+        sl.msgs.refund(1);
+        sl.bytes.refund(bytes);
+        return reject(session, sl, "user", limit, wait, now, type, fileId);
+    }
+
+    /** Reserva un hueco de subida abierta; false si ya hay {@code maxUploads}. */
+    boolean tryStartUpload() {
+        while (true) {
+            int n = uploads.get();
+            if (n >= maxUploads) {
+                THROTTLED.get("uploads").increment();
+                return false;
+            }
+            if (uploads.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    void uploadFinished() {
+        uploads.decrementAndGet();
+    }
+
+    int activeUploads() {
+        return uploads.get();
+    }
+
+    private Limits userLimits(String user, long now) {
+        Limits l = users.get(user);
+        if (l != null) return l;
+        if (users.size() >= maxUsers) {
+            // olvidar los usuarios cuyos buckets ya están llenos: no pierden nada
+            users.values().removeIf(x -> x.idle(now));
+        }
+        return users.computeIfAbsent(user, k -> new Limits(userMsgs, userBytes));
+    }
+
+    private boolean reject(Session session, Limits sl, String scope, String limit, long waitNanos, long now,
+                           String type, String fileId) {
+        THROTTLED.get(scope + "_" + limit).increment();
+        if (fileId != null || now - sl.quietUntil >= 0) {
+            sl.quietUntil = Math.max(sl.quietUntil, now + waitNanos);
+            FrameWriter w = Frame.system("throttled")
+                    .field("scope", scope)
+                    .field("limit", limit)
+                    .field("retryAfterMs", Math.max(1, waitNanos / 1_000_000))
+                    .field("dropped", type);
+            if (fileId != null) w.field("fileId", fileId);
+            broadcaster.send(session, w.build());
+        }
+        return false;
+    }
+}
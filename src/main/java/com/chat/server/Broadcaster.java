@@ -0,0 +1,153 @@
+package com.chat.server;
+
+import com.chat.common.LatencyHistogram;
+import jakarta.websocket.Session;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Subsistema de difusión (fan-out) del servidor.
+ * - Registro de sesiones en un ConcurrentHashMap: recorrerlo no toma ningún lock global
+ * - Cada sesión tiene su propia cola de salida acotada ({@link Outbox}) con un único envío en vuelo,
+ *   así un cliente lento solo acumula hasta {@code capacity} mensajes y no frena a los demás
+ * - Política de desbordamiento configurable (ver {@link OverflowPolicy})
+ * - Marcas alta/baja de mensajes y bytes pendientes por sesión: por encima de la alta la sesión
+ *   pasa a modo degradado hasta bajar de la baja (ver {@link Outbox})
+ */
+final class Broadcaster {
+
+    /** Qué hacer cuando la cola de salida de una sesión está llena. */
+    enum OverflowPolicy {
+        /** descarta el mensaje más antiguo de la cola */
+        DROP_OLDEST,
+        /** reemplaza un mensaje encolado con la misma clave de coalescencia; si no hay, descarta el más antiguo */
+        COALESCE,
+        /** cierra la sesión que no consume */
+        DISCONNECT
+    }
+
+    private static final LatencyHistogram FANOUT = Metrics.GLOBAL.histogram(
+            "chat_broadcast_fanout_seconds", "Tiempo en encolar un frame en todas sus sesiones destino");
+    private static final LongAdder RECIPIENTS = Metrics.GLOBAL.counter(
+            "chat_broadcast_recipients_total", "Entregas encoladas por difusiones (broadcast y sala)");
+
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // marcas de modo degradado (las lee cada Outbox)
+    final int highMessages;
+    final int lowMessages;
+    final long highBytes;
+    final long lowBytes;
+    private final AtomicInteger degraded = new AtomicInteger();
+
+    Broadcaster(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, capacity * 3 / 4, capacity / 4, 1024 * 1024, 256 * 1024);
+    }
+
+    Broadcaster(int capacity, OverflowPolicy policy, int highMessages, int lowMessages, long highBytes, long lowBytes) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity debe ser >= 1");
+        if (lowMessages > highMessages || lowBytes > highBytes) {
+            throw new IllegalArgumentException("la marca baja no puede superar a la alta");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.highMessages = Math.max(1, highMessages);
+        this.lowMessages = lowMessages;
+        this.highBytes = highBytes;
+        this.lowBytes = lowBytes;
+    }
+
+    /**
+     * Crea el broadcaster a partir de -Dchat.outbox.capacity, -Dchat.outbox.overflow y las marcas
+     * -Dchat.outbox.high.messages / .low.messages (3/4 y 1/4 de la capacidad) y
+     * -Dchat.outbox.high.bytes / .low.bytes (1 MiB y 256 KiB).
+     */
+    static Broadcaster fromSystemProperties() {
+        int capacity = Integer.getInteger("chat.outbox.capacity", 256);
+        OverflowPolicy policy = OverflowPolicy.valueOf(
+                System.getProperty("chat.outbox.overflow", OverflowPolicy.DROP_OLDEST.name()).trim().toUpperCase());
+        return new Broadcaster(capacity, policy,
+                Integer.getInteger("chat.outbox.high.messages", capacity * 3 / 4),
+                Integer.getInteger("chat.outbox.low.messages", capacity / 4),
+                Long.getLong("chat.outbox.high.bytes", 1024 * 1024),
+                Long.getLong("chat.outbox.low.bytes", 256 * 1024));
+    }
+
+    void register(Session session) {
+        outboxes.put(session.getId(), new Outbox(session, capacity, policy, this));
+    }
+
+    void unregister(Session session) {
+        Outbox o = outboxes.remove(session.getId());
+        if (o != null) o.clear();
+    }
+
+    int size() {
+        return outboxes.size();
+    }
+
+    /** Sesiones en modo degradado ahora mismo. */
+    int degradedSessions() {
+        return degraded.get();
+    }
+
+    void degradedChanged(int delta) {
+        degraded.addAndGet(delta);
+    }
+
+    /** Sesiones con algo encolado o en vuelo (ver {@link Outbox#idle}). */
+    int busyOutboxes() {
+        int n = 0;
+        for (Outbox o : outboxes.values()) {
+            if (!o.idle()) n++;
+        }
+        return n;
+    }
+
+    Collection<Outbox> outboxes() {
+        return outboxes.values();
+    }
+
+    /** Envía el frame a todas las sesiones registradas (el mismo frame codificado para todas). */
+    void broadcast(Frame frame) {
+        long t0 = System.nanoTime();
+        int n = 0;
+        for (Outbox o : outboxes.values()) {
+            o.offer(frame);
+            n++;
+        }
+        FANOUT.record((System.nanoTime() - t0) / 1000);
+        RECIPIENTS.add(n);
+    }
+
+    /** Envía el frame solo a las sesiones indicadas (p.ej. los miembros de una sala). */
+    void sendTo(Iterable<Session> sesiones, Frame frame) {
+        long t0 = System.nanoTime();
+        int n = 0;
+        for (Session s : sesiones) {
+            Outbox o = outboxes.get(s.getId());
+            if (o != null) {
+                o.offer(frame);
+                n++;
+            }
+        }
+        FANOUT.record((System.nanoTime() - t0) / 1000);
+        RECIPIENTS.add(n);
+    }
+
+    /** Envía el frame solo a una sesión. */
+    void send(Session session, Frame frame) {
+        Outbox o = outboxes.get(session.getId());
+        if (o != null) o.offer(frame);
+    }
+
+    /** Frame de transferencia a una sesión (ver {@link Outbox#offerBulk}); false si no se pudo encolar. */
+    boolean sendBulk(Session session, Frame frame) {
+        Outbox o = outboxes.get(session.getId());
+        return o != null && o.offerBulk(frame);
+    }
+}
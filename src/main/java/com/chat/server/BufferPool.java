@@ -0,0 +1,41 @@
+package com.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool acotado de ByteBuffers directos de tamaño fijo.
+ * Se usa cuando hay que copiar datos (p.ej. un chunk que llega en un buffer de heap)
+ * para no asignar un buffer directo nuevo por cada chunk.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /** Devuelve un buffer directo limpio de {@link #bufferSize()} bytes (del pool o nuevo). */
+    ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        return b != null ? b : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /** Devuelve el buffer al pool; si el pool está lleno se deja al GC. */
+    void release(ByteBuffer b) {
+        if (b == null || !b.isDirect() || b.capacity() != bufferSize) return;
+        b.clear();
+        free.offer(b);
+    }
+
+    int pooled() {
+        return free.size();
+    }
+}
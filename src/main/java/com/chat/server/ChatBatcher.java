@@ -0,0 +1,111 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micro-batching del chat por sala (-Dchat.batch.enabled, desactivado por defecto).
+ * - Los chats de una sala se acumulan como mucho -Dchat.batch.linger.ms (5) o hasta -Dchat.batch.max.items (64)
+ *   y salen como un solo {"type":"chat_batch","room":...,"items":[{chat},...]} por miembro: en ráfagas de
+ *   cientos de mensajes por segundo el coste por frame (cola de salida, envío async, cabecera WebSocket)
+ *   se paga una vez por lote
+ * - Un lote de un solo mensaje sale como el chat normal, así con poco tráfico solo se añade la espera
+ * - El orden se mantiene: los lotes de una sala se entregan bajo su lock
+ * - Los lotes que vencen por tiempo se reparten en -Dchat.batch.threads (1) hilos: la espera añadida es como
+ *   mucho linger más lo que tarde el reparto en curso; con carga los lotes crecen solos y el coste baja
+ * Los lotes solo existen en JSON: las sesiones chat.bin.v1 los reciben como texto.
+ */
+final class ChatBatcher {
+
+    /** Lote en curso de una sala (vive en {@link RoomRegistry.Room}). */
+    static final class Pending {
+        private List<Frame> frames = new ArrayList<>();
+        private boolean scheduled;
+    }
+
+    private static final LongAdder FLUSHES = Metrics.GLOBAL.counter(
+            "chat_batch_flushes_total", "Lotes de chat entregados (chat_batch o chat suelto)");
+    private static final LongAdder ITEMS = Metrics.GLOBAL.counter(
+            "chat_batch_items_total", "Mensajes de chat entregados en lotes");
+    private static final LongAdder FULL = Metrics.GLOBAL.counter(
+            "chat_batch_full_total", "Lotes entregados por llegar a max.items antes de linger");
+
+    private final Broadcaster broadcaster;
+    private final long lingerNanos;
+    private final int maxItems;
+    private final ScheduledExecutorService timer;
+
+    ChatBatcher(Broadcaster broadcaster, long lingerNanos, int maxItems, int threads) {
+        this.broadcaster = broadcaster;
+        this.lingerNanos = lingerNanos;
+        this.maxItems = Math.max(1, maxItems);
+        this.timer = Executors.newScheduledThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "chat-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** El batcher según las propiedades de sistema, o null si está desactivado (entrega directa). */
+    static ChatBatcher fromSystemProperties(Broadcaster broadcaster) {
+        if (!Boolean.getBoolean("chat.batch.enabled")) return null;
+        long lingerMicros = (long) (Double.parseDouble(System.getProperty("chat.batch.linger.ms", "5")) * 1000);
+        return new ChatBatcher(broadcaster, Math.max(1, lingerMicros) * 1000,
+                Integer.getInteger("chat.batch.max.items", 64), Integer.getInteger("chat.batch.threads", 1));
+    }
+
+    /** Añade un chat (ya registrado con su seq) al lote de la sala. */
+    void add(RoomRegistry.Room room, Frame frame) {
+        Pending p = room.batch;
+        synchronized (p) {
+            p.frames.add(frame);
+            if (p.frames.size() >= maxItems) {
+                FULL.increment();
+                deliver(room, p);
+            } else if (!p.scheduled) {
+                try {
+                    timer.schedule(() -> flush(room), lingerNanos, TimeUnit.NANOSECONDS);
+                    p.scheduled = true;
+                } catch (RejectedExecutionException e) {
+                    // cerrado (drenando): sin espera
+                    deliver(room, p);
+                }
+            }
+        }
+    }
+
+    private void flush(RoomRegistry.Room room) {
+        Pending p = room.batch;
+        synchronized (p) {
+            p.scheduled = false;
+            if (!p.frames.isEmpty()) deliver(room, p);
+        }
+    }
+
+    /** Con el lock del lote: un frame por miembro. Encolar en las Outbox no bloquea. */
+    private void deliver(RoomRegistry.Room room, Pending p) {
+        List<Frame> frames = p.frames;
+        p.frames = new ArrayList<>(Math.min(frames.size() * 2, maxItems));
+        Frame out = frames.size() == 1 ? frames.get(0) : Frame.chatBatch(room.name, frames);
+        broadcaster.sendTo(room.members, out);
+        FLUSHES.increment();
+        ITEMS.add(frames.size());
+    }
+
+    /** Entrega los lotes pendientes (sus flush ya programados) y para el temporizador; espera como mucho {@code timeoutNanos}. */
+    void close(long timeoutNanos) throws InterruptedException {
+        timer.shutdown();
+        timer.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChatBatcher[linger=%.1fms maxItems=%d flushes=%d items=%d full=%d]",
+                lingerNanos / 1e6, maxItems, FLUSHES.sum(), ITEMS.sum(), FULL.sum());
+    }
+}
@@ -1,276 +1,745 @@
 package com.chat.server;
 
+import com.chat.common.BinaryFrame;
+import com.chat.common.ChunkCompressor;
+import com.chat.common.InstrumentedExecutor;
+import com.chat.common.LatencyHistogram;
+import com.chat.common.Log;
+import com.chat.common.PerMessageDeflate;
+import com.chat.common.Workers;
 import jakarta.websocket.*;
 import jakarta.websocket.server.ServerEndpoint;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.FileOutputStream;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import jakarta.websocket.SendHandler;
-import jakarta.websocket.SendResult;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.UncheckedIOException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
 
-@ServerEndpoint("/chat")
+// subprotocolo opcional chat.bin.v1 (ver BinaryFrame); sin él, todo es JSON.
+// permessage-deflate lo instala el configurador (-Dchat.ws.deflate*)
+@ServerEndpoint(value = "/chat", subprotocols = {BinaryFrame.SUBPROTOCOL}, configurator = ChatEndpointConfigurator.class)
 public class ChatEndpoint {
 
-    private static final Set<Session> sesiones =
-            Collections.synchronizedSet(new HashSet<>());
+    // Registro de sesiones + colas de salida por sesión. Configurable con
+    // -Dchat.outbox.capacity=N y -Dchat.outbox.overflow=DROP_OLDEST|COALESCE|DISCONNECT
+    private static final Broadcaster broadcaster = Broadcaster.fromSystemProperties();
+
+    // Progreso de subidas coalescido por fileId y entregado solo a quien sube o se suscribe
+    private static final ProgressReporter progress = ProgressReporter.fromSystemProperties(broadcaster);
 
-    // Executor for background tasks (pdf worker, etc.). Size configurable with -Dchat.worker.pool.size=N
+    // Executor for background tasks (pdf worker, etc.). Size configurable with -Dchat.worker.pool.size=N,
+    // execution model with -Dchat.worker.mode=platform|virtual|work_stealing
     private static final int WORKER_POOL_SIZE = Integer.getInteger("chat.worker.pool.size", 4);
-    private static final ExecutorService WORKER_POOL = Executors.newFixedThreadPool(WORKER_POOL_SIZE);
+    private static final InstrumentedExecutor WORKER_POOL = Workers.create("chat-worker",
+            Workers.modeFromSystemProperty("chat.worker.mode", Workers.Mode.PLATFORM), WORKER_POOL_SIZE);
+
+    // Secuencias + log append-only en disco (-Dchat.log.dir, -Dchat.log.enabled) para replay desde seq N
+    private static final HistoryService chatHistory = HistoryService.fromSystemProperties();
+    // Salas: índice sala -> sesiones, con el historial reciente de cada sala (-Dchat.history.size=N)
+    // y un máximo de salas por sesión (-Dchat.rooms.per.session=N)
+    private static final RoomRegistry rooms = new RoomRegistry(Integer.getInteger("chat.history.size", 500),
+            Integer.getInteger("chat.rooms.per.session", 32), chatHistory::lastSeq);
+    // reenvío a otros nodos del servidor (-Dchat.cluster.bus; por defecto un solo nodo)
+    private static final ClusterRelay cluster = ClusterRelay.fromSystemProperties(broadcaster, rooms);
+    // Micro-batching del chat por sala (-Dchat.batch.*); null = cada chat sale en su propio frame
+    private static final ChatBatcher batcher = ChatBatcher.fromSystemProperties(broadcaster);
+
+    // Máximo de mensajes por petición de historial y mensajes que se reenvían al entrar a una sala
+    private static final int HISTORY_MAX = Integer.getInteger("chat.history.max", 1000);
+    private static final int JOIN_REPLAY = Integer.getInteger("chat.history.replay", 50);
+    // Trabajos de generación de PDF (cola de prioridad + caché por contenido) sobre el pool de workers
+    private static final DocumentJobEngine documents = DocumentJobEngine.fromSystemProperties(broadcaster, WORKER_POOL);
+
+    // Directorio de subidas (parciales + bitmaps para reanudar). Configurable con -Dchat.upload.dir=ruta
+    private static final Path UPLOAD_DIR = Path.of(System.getProperty("chat.upload.dir",
+            Path.of(System.getProperty("java.io.tmpdir"), "chat-uploads").toString()));
+
+    // Subidas completas por contenido (SHA-256), con deduplicación y expulsión LRU/TTL (-Dchat.upload.store.*)
+    private static final UploadStore store = UploadStore.fromSystemProperties(UPLOAD_DIR);
+
+    // Límites de tasa por sesión/usuario y tope de subidas abiertas (-Dchat.ratelimit.*, -Dchat.upload.max.concurrent)
+    private static final AdmissionControl admission = AdmissionControl.fromSystemProperties(broadcaster);
 
     // Uploads in progress: fileId -> state
     private static final Map<String, UploadState> uploads = new ConcurrentHashMap<>();
-    // For each session, which fileId we expect next as a binary chunk (set by upload_chunk_meta)
-    private static final Map<Session, AtomicReference<String>> pendingBinary = new ConcurrentHashMap<>();
-
-    private static class UploadState {
-        final Path tmpPath;
-        final FileOutputStream os;
-        final long expectedSize;
-        long received = 0;
-        final String name;
-
-        UploadState(Path tmpPath, FileOutputStream os, long expectedSize, String name) {
-            this.tmpPath = tmpPath;
-            this.os = os;
-            this.expectedSize = expectedSize;
-            this.name = name;
-        }
+    // For each session, the chunks announced by upload_chunk_meta whose binary frame has not arrived yet
+    // (FIFO: varios chunks en vuelo por sesión; el binario i corresponde al meta i)
+    // Acotada (-Dchat.upload.pending.max, 32: holgado frente a la ventana del cliente); pasarse cierra la sesión
+    private static final Map<Session, Queue<ChunkMeta>> pendingBinary = new ConcurrentHashMap<>();
+    private static final int MAX_PENDING_CHUNKS = Math.max(1, Integer.getInteger("chat.upload.pending.max", 32));
 
-        synchronized void write(ByteBuffer buf) throws IOException {
-            int len = buf.remaining();
-            byte[] b = new byte[len];
-            buf.get(b);
-            os.write(b);
-            received += len;
-        }
+    // Métricas por tipo de mensaje entrante; los tipos desconocidos se agrupan en "other" para acotar las etiquetas
+    private static final Set<String> TIPOS = Set.of("upload_start", "upload_chunk_meta", "upload_subscribe",
+            "upload_unsubscribe", "upload_status", "chat", "history", "system", "join", "leave", "upload_chunk",
+            "upload_end", "create_pdf", "cancel_pdf", "download", "binary", "bin_chunk", "bin_upload_end", "bin_chat", "throttled");
+    private static final Metrics.Family<LongAdder> MESSAGES_IN = Metrics.GLOBAL.counterFamily(
+            "chat_messages_in_total", "type", "Mensajes recibidos de clientes, por tipo");
+    private static final Metrics.Family<LatencyHistogram> HANDLE_TIME = Metrics.GLOBAL.histogramFamily(
+            "chat_message_handle_seconds", "type", "Tiempo de proceso de un mensaje entrante, por tipo");
+    private static final LongAdder BYTES_UPLOADED = Metrics.GLOBAL.counter(
+            "chat_upload_bytes_total", "Bytes de subidas recibidos en mensajes binarios");
+    // chunks que llegan comprimidos (ChunkCompressor): bytes en la red frente a bytes descomprimidos y su CPU
+    private static final LongAdder COMPRESSED_CHUNKS = Metrics.GLOBAL.counter(
+            "chat_upload_compressed_chunks_total", "Chunks de subida recibidos comprimidos");
+    private static final LongAdder COMPRESSED_BYTES = Metrics.GLOBAL.counter(
+            "chat_upload_compressed_bytes_total", "Bytes en la red de los chunks comprimidos");
+    private static final LongAdder INFLATED_BYTES = Metrics.GLOBAL.counter(
+            "chat_upload_inflated_bytes_total", "Bytes de los chunks comprimidos una vez descomprimidos");
+    private static final LatencyHistogram INFLATE_TIME = Metrics.GLOBAL.histogram(
+            "chat_upload_inflate_seconds", "Tiempo de descompresión de un chunk de subida");
+    private static final LongAdder CONNECTIONS = Metrics.GLOBAL.counter(
+            "chat_connections_total", "Sesiones WebSocket abiertas desde el arranque");
+
+    // espera sugerida al cliente cuando se alcanza el tope de subidas abiertas
+    private static final long UPLOAD_RETRY_MS = Long.getLong("chat.upload.retry.ms", 2000);
 
-        synchronized void close() throws IOException {
-            os.flush();
-            os.close();
+    // userProperties: identidad de la sesión (ver identity)
+    static final String USER_KEY = "user";
+
+    // el servidor se está parando (ver drain)
+    private static volatile boolean draining;
+
+    private static final class ChunkMeta {
+        final String fileId;
+        final long offset; // -1: sin offset (protocolo antiguo, se escribe a continuación)
+        final boolean deflated;
+
+        ChunkMeta(String fileId, long offset, boolean deflated) {
+            this.fileId = fileId;
+            this.offset = offset;
+            this.deflated = deflated;
         }
     }
 
+    // meta de un upload_chunk_meta rechazado por límite de tasa: su binario se descarta al llegar
+    private static final ChunkMeta DISCARD = new ChunkMeta(null, -1, false);
+
     static {
-        // Shutdown executor gracefully on JVM exit
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            WORKER_POOL.shutdown();
-            try {
-                if (!WORKER_POOL.awaitTermination(3, TimeUnit.SECONDS)) {
-                    WORKER_POOL.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                WORKER_POOL.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }, "chat-endpoint-shutdown"));
+        Metrics m = Metrics.GLOBAL;
+        m.gauge("chat_sessions", "Sesiones conectadas", broadcaster::size);
+        m.gauge("chat_rooms", "Salas existentes", rooms::roomCount);
+        m.gauge("chat_sessions_degraded", "Sesiones lentas en modo degradado (marcas -Dchat.outbox.high.*)", broadcaster::degradedSessions);
+        m.gauge("chat_uploads_active", "Subidas abiertas", uploads::size);
+        m.gauge("chat_uploads_admitted", "Huecos de subida ocupados (tope -Dchat.upload.max.concurrent)", admission::activeUploads);
+        m.gauge("chat_store_files", "Ficheros en el almacén de subidas", store::files);
+        m.gauge("chat_store_bytes", "Bytes en el almacén de subidas", store::bytes);
+        m.gauge("chat_worker_pool_queue_depth", "Tareas encoladas en WORKER_POOL", WORKER_POOL::queueDepth);
+        m.gauge("chat_worker_pool_max_queue_depth", "Máximo de tareas encoladas en WORKER_POOL", WORKER_POOL::maxQueueDepth);
+        m.gauge("chat_worker_pool_active", "Tareas ejecutándose en WORKER_POOL", WORKER_POOL::activeCount);
+        m.gauge("chat_worker_pool_saturation", "Activas / hilos de WORKER_POOL (-1 sin límite)", WORKER_POOL::saturation);
+        m.gauge("chat_worker_pool_rejected", "Tareas rechazadas por WORKER_POOL", WORKER_POOL::rejectedCount);
+        m.gauge("chat_pdf_queue_depth", "Trabajos de PDF pendientes", documents::queueDepth);
+        m.gauge("chat_history_last_seq", "Último seq de chat asignado", chatHistory::lastSeq);
+        m.gauge("chat_log_dropped", "Líneas de log descartadas por cola llena", Log::dropped);
+        if (cluster.enabled()) {
+            m.gauge("chat_cluster_relayed", "Mensajes publicados al cluster", () -> cluster.relayed.sum());
+            m.gauge("chat_cluster_delivered", "Mensajes del cluster entregados localmente", () -> cluster.delivered.sum());
+        }
+        if (PerMessageDeflate.ENABLED) {
+            // permessage-deflate: ahorro de red frente a CPU, en los dos sentidos
+            m.gauge("chat_ws_deflate_raw_bytes_out", "Bytes salientes antes de permessage-deflate", PerMessageDeflate::rawBytesOut);
+            m.gauge("chat_ws_deflate_wire_bytes_out", "Bytes salientes comprimidos por permessage-deflate", PerMessageDeflate::wireBytesOut);
+            m.gauge("chat_ws_deflate_cpu_seconds", "CPU gastada comprimiendo mensajes salientes", PerMessageDeflate::deflateSeconds);
+            m.gauge("chat_ws_deflate_skipped", "Mensajes salientes sin comprimir (cortos o binarios)", PerMessageDeflate::skipped);
+            m.gauge("chat_ws_inflate_wire_bytes_in", "Bytes entrantes comprimidos con permessage-deflate", PerMessageDeflate::wireBytesIn);
+            m.gauge("chat_ws_inflate_raw_bytes_in", "Bytes entrantes una vez descomprimidos", PerMessageDeflate::rawBytesIn);
+            m.gauge("chat_ws_inflate_cpu_seconds", "CPU gastada descomprimiendo mensajes entrantes", PerMessageDeflate::inflateSeconds);
+        }
     }
 
     @OnOpen
     public void onOpen(Session session) {
-        sesiones.add(session);
+        if (draining) {
+            // ya no se aceptan conexiones: que el cliente vaya a otro nodo (o vuelva tras el reinicio)
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.SERVICE_RESTART, "draining"));
+            } catch (IOException e) {
+                Log.debug("Error rechazando conexión durante el drenado: %s", e.getMessage());
+            }
+            return;
+        }
+        CONNECTIONS.increment();
+        broadcaster.register(session);
+        admission.register(session);
         // preparar estructura para recibir binarios (metadata + binary alternado)
-        pendingBinary.put(session, new AtomicReference<>(null));
-        System.out.println("Cliente conectado. Total: " + sesiones.size());
+        pendingBinary.put(session, new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS));
+        // todos empiezan en la sala por defecto
+        rooms.join(session, RoomRegistry.DEFAULT_ROOM);
+        Log.debug("Cliente conectado. Total: %d", broadcaster.size());
     }
 
     @OnMessage
     public void onMessage(String mensaje, Session session) {
+        long t0 = System.nanoTime();
+        String tipo = "other";
         try {
             JSONObject data = new JSONObject(mensaje);
-            String tipo = data.optString("type", "");
+            tipo = data.optString("type", "");
+            if (!admission.admit(session, mensaje.length(), tipo,
+                    "upload_start".equals(tipo) || "upload_end".equals(tipo) ? data.optString("fileId", null) : null)) {
+                // un upload_chunk_meta rechazado deja su hueco en la cola para que su binario no se empareje con otro
+                if ("upload_chunk_meta".equals(tipo)) pendingChunk(session, DISCARD);
+                tipo = "throttled";
+                return;
+            }
             if ("upload_start".equals(tipo)) {
                 String fileId = data.optString("fileId", "");
                 String name = data.optString("name", "uploaded.bin");
                 long size = data.optLong("size", -1);
+                int chunkSize = data.optInt("chunkSize", UploadState.DEFAULT_BLOCK_SIZE);
+                if (!isValidFileId(fileId)) {
+                    Log.warn("upload_start con fileId inválido: %s", fileId);
+                    return;
+                }
+                if (size > UploadState.MAX_BYTES) {
+                    broadcaster.send(session, Frame.system("upload_error")
+                            .field("fileId", fileId)
+                            .field("reason", "too_large")
+                            .field("maxBytes", UploadState.MAX_BYTES)
+                            .build());
+                    return;
+                }
+                if (draining && !uploads.containsKey(fileId)) {
+                    // las abiertas pueden terminar durante el drenado; las nuevas, en el siguiente nodo
+                    broadcaster.send(session, Frame.system("upload_rejected")
+                            .field("fileId", fileId)
+                            .field("reason", "draining")
+                            .field("retryAfterMs", UPLOAD_RETRY_MS)
+                            .build());
+                    return;
+                }
                 try {
-                    Path tmp = Files.createTempFile("upload-", "-" + name);
-                    FileOutputStream os = new FileOutputStream(tmp.toFile());
-                    UploadState st = new UploadState(tmp, os, size, name);
-                    uploads.put(fileId, st);
-                    System.out.printf("Iniciada subida: %s (fileId=%s, expected=%d) -> %s%n", name, fileId, size, tmp.toString());
-                    JSONObject started = new JSONObject();
-                    started.put("type", "system");
-                    started.put("event", "upload_started");
-                    started.put("fileId", fileId);
-                    started.put("file", name);
-                    broadcast(started.toString());
-                } catch (IOException e) {
-                    System.err.println("No se pudo iniciar upload: " + e.getMessage());
+                    // si la subida ya está abierta (otra sesión o reconexión) se reutiliza;
+                    // solo las nuevas ocupan hueco del tope global
+                    UploadState st = uploads.computeIfAbsent(fileId, id -> {
+                        if (!admission.tryStartUpload()) return null;
+                        try {
+                            return UploadState.open(UPLOAD_DIR, id, safeName(name), size, chunkSize);
+                        } catch (IOException e) {
+                            admission.uploadFinished();
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    if (st == null) {
+                        broadcaster.send(session, Frame.system("upload_rejected")
+                                .field("fileId", fileId)
+                                .field("reason", "busy")
+                                .field("retryAfterMs", UPLOAD_RETRY_MS)
+                                .build());
+                        return;
+                    }
+                    st.owner = session;
+                    Log.info("Iniciada subida: %s (fileId=%s, expected=%d, resumed=%s) -> %s", name, fileId, size, st.resumed, st.tmpPath);
+                    broadcast(Frame.system("upload_started")
+                            .field("fileId", fileId)
+                            .field("file", name)
+                            .build());
+                    progress.start(st, session);
+                    // al que sube: qué rangos faltan (todo, o lo pendiente si se reanuda)
+                    sendUploadStatus(session, st);
+                } catch (UncheckedIOException e) {
+                    Log.warn("No se pudo iniciar upload: %s", e.getCause().getMessage());
                 }
                 return;
             } else if ("upload_chunk_meta".equals(tipo)) {
                 String fileId = data.optString("fileId", "");
-                AtomicReference<String> ref = pendingBinary.get(session);
-                if (ref != null) {
-                    ref.set(fileId);
+                pendingChunk(session, new ChunkMeta(fileId, data.optLong("offset", -1), "deflate".equals(data.optString("enc"))));
+                return;
+            } else if ("upload_subscribe".equals(tipo) || "upload_unsubscribe".equals(tipo)) {
+                // opt-in al progreso de un fileId concreto o de todas las subidas ("*")
+                String fileId = data.optString("fileId", "*");
+                if ("upload_subscribe".equals(tipo)) {
+                    if (!progress.subscribe(session, fileId)) {
+                        // solo subidas abiertas: como upload_status de un fileId desconocido
+                        broadcaster.send(session, Frame.system("upload_status")
+                                .field("fileId", fileId)
+                                .field("known", false)
+                                .build());
+                    }
+                } else {
+                    progress.unsubscribe(session, fileId);
+                }
+                return;
+            } else if ("upload_status".equals(tipo)) {
+                // un cliente que reconecta pregunta qué rangos le faltan
+                String fileId = data.optString("fileId", "");
+                UploadState st = uploads.get(fileId);
+                if (st != null) {
+                    sendUploadStatus(session, st);
+                } else {
+                    broadcaster.send(session, Frame.system("upload_status")
+                            .field("fileId", fileId)
+                            .field("known", false)
+                            .build());
                 }
                 return;
             }
             if ("chat".equals(tipo)) {
-                String user = data.optString("user", "Anon");
-                String text = data.optString("text", "");
-                System.out.printf("[%s] %s%n", user, text);
-                JSONObject respuesta = new JSONObject();
-                respuesta.put("type", "chat");
-                respuesta.put("user", user);
-                respuesta.put("text", text);
-                broadcast(respuesta.toString());
+                chat(session, data.optString("room", RoomRegistry.DEFAULT_ROOM),
+                        data.optString("user", "Anon"), data.optString("text", ""));
+            } else if ("history".equals(tipo)) {
+                // {"type":"history","room":...,"since":N,"limit":L}: mensajes de la sala con seq > N
+                String room = data.optString("room", RoomRegistry.DEFAULT_ROOM);
+                RoomRegistry.Room r = rooms.get(room);
+                if (r == null || !r.members.contains(session)) {
+                    broadcaster.send(session, Frame.system("not_in_room").field("room", room).build());
+                    return;
+                }
+                int limit = Math.max(1, Math.min(data.optInt("limit", HISTORY_MAX), HISTORY_MAX));
+                replay(session, r, data.optLong("since", 0), limit);
+            } else if ("system".equals(tipo) && "join".equals(data.optString("event"))) {
+                // anuncio del cliente al conectar: {"type":"system","event":"join","user":...}
+                bindIdentity(session, data.optString("user", "Anon"));
+                // ya estaba en la sala por defecto desde onOpen; se anuncia igual porque ahora se conoce el nombre
+                joinRoom(session, data.optString("room", RoomRegistry.DEFAULT_ROOM), true);
+            } else if ("join".equals(tipo)) {
+                joinRoom(session, data.optString("room", ""), false);
+            } else if ("leave".equals(tipo)) {
+                String room = data.optString("room", "");
+                if (rooms.leave(session, room)) {
+                    RoomRegistry.Room r = rooms.get(room);
+                    if (r != null) broadcaster.sendTo(r.members, roomEvent("user_left", room, session));
+                    broadcaster.send(session, roomEvent("left", room, session));
+                }
             } else if ("upload_chunk".equals(tipo)) {
                 String name = data.optString("name", "unknown");
                 int part = data.optInt("part", -1);
-                System.out.printf("Recibiendo parte %d de archivo %s (simulado)%n", part, name);
+                Log.debug("Recibiendo parte %d de archivo %s (simulado)", part, name);
                 // informar que se está recibiendo (no se guarda nada)
-                JSONObject sys = new JSONObject();
-                sys.put("type", "system");
-                sys.put("event", "upload_receiving");
-                sys.put("file", name);
-                sys.put("part", part);
-                broadcast(sys.toString());
+                broadcast(Frame.system("upload_receiving")
+                        .field("file", name)
+                        .field("part", part)
+                        .build());
             } else if ("upload_end".equals(tipo)) {
                 String fileId = data.optString("fileId", "");
                 if (!fileId.isEmpty()) {
-                    UploadState st = uploads.remove(fileId);
-                    if (st != null) {
-                        try {
-                            st.close();
-                            System.out.printf("Subida terminada (real) del archivo %s -> %s (recibidos=%d)%n", st.name, st.tmpPath.toString(), st.received);
-                            JSONObject done = new JSONObject();
-                            done.put("type", "system");
-                            done.put("event", "upload_done");
-                            done.put("file", st.name);
-                            done.put("path", st.tmpPath.toString());
-                            broadcast(done.toString());
-                        } catch (IOException e) {
-                            System.err.println("Error cerrando upload: " + e.getMessage());
-                        }
-                    }
+                    endUpload(session, fileId);
                 } else {
                     String name = data.optString("name", "unknown");
-                    System.out.printf("Subida terminada (simulado) del archivo %s%n", name);
-                    JSONObject done = new JSONObject();
-                    done.put("type", "system");
-                    done.put("event", "upload_done");
-                    done.put("file", name);
-                    broadcast(done.toString());
+                    Log.debug("Subida terminada (simulado) del archivo %s", name);
+                    broadcast(Frame.system("upload_done")
+                            .field("file", name)
+                            .build());
+                }
+            } else if ("download".equals(tipo)) {
+                // {"type":"download","hash":<sha256>}: el hash llega en upload_done
+                String hash = data.optString("hash", "");
+                UploadStore.Blob blob = store.get(hash);
+                if (blob == null) {
+                    broadcaster.send(session, Frame.system("download_error").field("hash", hash).field("reason", "unknown").build());
+                } else if (!Download.start(broadcaster, session, blob)) {
+                    broadcaster.send(session, Frame.system("download_error").field("hash", hash).field("reason", "busy").build());
                 }
             } else if ("create_pdf".equals(tipo)) {
                 String title = data.optString("title", "Sin título");
-                System.out.printf("Solicitud de creación de PDF: %s (simulado)%n", title);
-                // avisar inmediatamente
-                JSONObject notify = new JSONObject();
-                notify.put("type", "system");
-                notify.put("event", "pdf_creating");
-                notify.put("title", title);
-                broadcast(notify.toString());
-                // lanzar trabajo simulado en el pool para no bloquear
-                WORKER_POOL.submit(() -> {
-                    try {
-                        Thread.sleep(3000);
-                        System.out.printf("PDF listo (simulado): %s%n", title);
-                        JSONObject ready = new JSONObject();
-                        ready.put("type", "system");
-                        ready.put("event", "pdf_ready");
-                        ready.put("title", title);
-                        broadcast(ready.toString());
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                });
+                int priority = data.optInt("priority", DocumentJobEngine.PRIORITY_NORMAL);
+                Log.debug("Solicitud de creación de PDF: %s (prioridad %d)", title, priority);
+                // pdf_creating / pdf_ready los emite el motor; si ya está en caché responde al momento
+                String room = data.optString("room", RoomRegistry.DEFAULT_ROOM);
+                RoomRegistry.Room r = rooms.get(room);
+                if (r == null || !r.members.contains(session)) {
+                    broadcaster.send(session, Frame.system("not_in_room").field("room", room).build());
+                    return;
+                }
+                documents.submit(session, identity(session), title, priority, r.history.snapshot());
+            } else if ("cancel_pdf".equals(tipo)) {
+                String jobId = data.optString("jobId", "");
+                if (!documents.cancel(jobId, identity(session))) {
+                    Log.debug("cancel_pdf ignorado (jobId desconocido, de otro usuario o ya terminado): %s", jobId);
+                }
             }
         } catch (Exception e) {
-            System.out.println("Error procesando mensaje: " + e.getMessage());
+            Log.warn("Error procesando mensaje: %s", e.getMessage());
+        } finally {
+            record(tipo, t0);
         }
     }
 
     @OnMessage
     public void onBinaryMessage(ByteBuffer data, Session session) {
-        AtomicReference<String> ref = pendingBinary.get(session);
-        String fileId = null;
-        if (ref != null) fileId = ref.getAndSet(null);
-        if (fileId == null) {
-            System.out.println("Binary message received but no pending fileId for session");
+        long t0 = System.nanoTime();
+        String tipo = "binary";
+        try {
+            // un chunk descartado por límite de tasa se reenvía cuando upload_end devuelva el hueco en upload_status
+            if (BinaryFrame.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol())) {
+                int len = data.remaining();
+                BinaryFrame f = BinaryFrame.decode(data);
+                if (!admission.admit(session, len, "binary", f.type == BinaryFrame.UPLOAD_END ? f.id : null)) {
+                    tipo = "throttled";
+                    return;
+                }
+                tipo = onBinaryFrame(f, session);
+            } else if (!admission.admit(session, data.remaining(), "binary", null)) {
+                // descartar también su upload_chunk_meta para no desemparejar la cola
+                tipo = "throttled";
+                Queue<ChunkMeta> q = pendingBinary.get(session);
+                if (q != null) q.poll();
+            } else {
+                // JSON: el chunk llega en un frame aparte tras su upload_chunk_meta
+                BYTES_UPLOADED.add(data.remaining());
+                writeChunk(data, session);
+            }
+        } catch (RuntimeException e) {
+            Log.warn("Frame binario inválido: %s", e.getMessage());
+        } finally {
+            record(tipo, t0);
+        }
+    }
+
+    /** chat.bin.v1: cabecera + payload en el mismo frame. Devuelve el tipo para las métricas. */
+    private String onBinaryFrame(BinaryFrame f, Session session) {
+        switch (f.type) {
+            case BinaryFrame.CHUNK:
+                BYTES_UPLOADED.add(f.payload.remaining());
+                writeChunk(session, f.id, f.offset, f.payload, f.deflated());
+                return "bin_chunk";
+            case BinaryFrame.UPLOAD_END:
+                endUpload(session, f.id);
+                return "bin_upload_end";
+            case BinaryFrame.CHAT:
+                chat(session, f.id, f.chatUser(), f.chatText());
+                return "bin_chat";
+            default:
+                Log.warn("Tipo de frame binario desconocido: %d", f.type);
+                return "other";
+        }
+    }
+
+    private void writeChunk(ByteBuffer data, Session session) {
+        Queue<ChunkMeta> q = pendingBinary.get(session);
+        ChunkMeta meta = q != null ? q.poll() : null;
+        if (meta == null) {
+            Log.warn("Binary message received but no pending fileId for session");
             return;
         }
+        if (meta == DISCARD) return; // su upload_chunk_meta se rechazó: upload_status lo devolverá como hueco
+        writeChunk(session, meta.fileId, meta.offset, data, meta.deflated);
+    }
+
+    /**
+     * Encola el meta del siguiente binario de la sesión. Un cliente que anuncia más de MAX_PENDING_CHUNKS
+     * chunks sin mandar sus binarios ya no se puede emparejar: se cierra la sesión.
+     */
+    private static void pendingChunk(Session session, ChunkMeta meta) {
+        Queue<ChunkMeta> q = pendingBinary.get(session);
+        if (q == null || q.offer(meta)) return;
+        Log.warn("Sesión %s con más de %d upload_chunk_meta sin binario: se cierra", identity(session), MAX_PENDING_CHUNKS);
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "too_many_pending_chunks"));
+        } catch (IOException e) {
+            Log.debug("Error cerrando sesión: %s", e.getMessage());
+        }
+    }
+
+    private void writeChunk(Session session, String fileId, long offset, ByteBuffer data, boolean deflated) {
         UploadState st = uploads.get(fileId);
         if (st == null) {
-            System.out.println("No upload state for fileId=" + fileId);
+            Log.warn("No upload state for fileId=%s", fileId);
             return;
         }
         try {
-            st.write(data);
-            // optionally inform progress
-            JSONObject prog = new JSONObject();
-            prog.put("type", "system");
-            prog.put("event", "upload_receiving");
-            prog.put("file", st.name);
-            prog.put("received", st.received);
-            broadcast(prog.toString());
+            if (deflated) data = inflate(data, st.blockSize());
+            if (offset >= 0) {
+                st.write(data, offset);
+            } else {
+                st.write(data);
+            }
+            // progreso coalescido (por tiempo/porcentaje), no un evento por chunk y sesión
+            progress.chunkWritten(st, session);
         } catch (IOException e) {
-            System.err.println("Error escribiendo chunk para fileId=" + fileId + ": " + e.getMessage());
+            Log.error("Error escribiendo chunk para fileId=%s: %s", fileId, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // offset o longitud fuera de la subida: no se ha escrito nada
+            Log.warn("Chunk rechazado para fileId=%s: %s", fileId, e.getMessage());
+            broadcaster.send(session, Frame.system("upload_error")
+                    .field("fileId", fileId)
+                    .field("offset", offset)
+                    .field("reason", "out_of_range")
+                    .build());
+        } catch (DataFormatException e) {
+            Log.warn("Chunk comprimido inválido para fileId=%s: %s", fileId, e.getMessage());
         }
     }
 
+    /**
+     * Un chunk no puede descomprimir a más que el tamaño de bloque de la subida, que el servidor ya acotó
+     * a UploadState.MAX_BLOCK_SIZE (y ChunkCompressor a MAX_INFLATED_BYTES), pida el cliente lo que pida.
+     */
+    private static ByteBuffer inflate(ByteBuffer data, int maxBytes) throws DataFormatException {
+        long t0 = System.nanoTime();
+        int wire = data.remaining();
+        ByteBuffer raw = ChunkCompressor.inflate(data, maxBytes);
+        INFLATE_TIME.record((System.nanoTime() - t0) / 1000);
+        COMPRESSED_CHUNKS.increment();
+        COMPRESSED_BYTES.add(wire);
+        INFLATED_BYTES.add(raw.remaining());
+        return raw;
+    }
+
     @OnClose
     public void onClose(Session session) {
-        sesiones.remove(session);
-        System.out.println("Cliente desconectado. Total: " + sesiones.size());
+        broadcaster.unregister(session);
+        pendingBinary.remove(session);
+        progress.sessionClosed(session);
+        abandonUploads(session);
+        for (String room : rooms.leaveAll(session)) {
+            RoomRegistry.Room r = rooms.get(room);
+            if (r != null) broadcaster.sendTo(r.members, roomEvent("user_left", room, session));
+        }
+        Log.debug("Cliente desconectado. Total: %d", broadcaster.size());
     }
 
     @OnError
     public void onError(Session session, Throwable t) {
-        System.err.println("Error: " + t.getMessage());
+        Log.warn("Error: %s", t.getMessage());
     }
 
-    private void broadcast(String mensaje) {
-        synchronized (sesiones) {
-            List<Session> toRemove = new ArrayList<>();
-            for (Session s : sesiones) {
-                if (s.isOpen()) {
-                    try {
-                        // enviar de forma asíncrona para evitar bloqueos del servidor
-                        // añadimos un SendHandler para detectar fallos y limpiar la sesión si es necesario
-                        s.getAsyncRemote().sendText(mensaje, new SendHandler() {
-                            @Override
-                            public void onResult(SendResult result) {
-                                if (result.getException() != null) {
-                                    System.err.println("Error enviando mensaje a cliente (async): " + result.getException().getMessage());
-                                    try {
-                                        sesiones.remove(s);
-                                        s.close();
-                                    } catch (Exception ex) {
-                                        // ignore
-                                    }
-                                }
-                            }
-                        });
-                    } catch (Exception e) {
-                        System.err.println("Error iniciando envío async a cliente: " + e.getMessage());
-                        toRemove.add(s);
-                    }
-                } else {
-                    toRemove.add(s);
-                }
+    private static void sendUploadStatus(Session session, UploadState st) {
+        broadcaster.send(session, Frame.system("upload_status")
+                .field("fileId", st.fileId)
+                .field("known", true)
+                .field("size", st.expectedSize)
+                .field("chunkSize", st.blockSize())
+                .field("received", st.received())
+                .field("missing", st.missing())
+                .build());
+    }
+
+    private static void chat(Session session, String room, String name, String text) {
+        // el chat sale con la identidad de la sesión, no con el "user" que traiga el mensaje
+        String user = bindIdentity(session, name);
+        RoomRegistry.Room r = rooms.get(room);
+        if (r == null || !r.members.contains(session)) {
+            broadcaster.send(session, Frame.system("not_in_room").field("room", room).build());
+            return;
+        }
+        Log.debug("[%s@%s] %s", user, room, text);
+        Frame frame;
+        // seq, ring buffer y encolado bajo el lock de la sala: dos envíos simultáneos no se adelantan en la sala
+        synchronized (r) {
+            // seq asignado por el servidor + log en disco + ring buffer de la sala
+            frame = chatHistory.record(r, user, text);
+            // solo a los miembros de la sala (directo o en el lote de la sala)
+            if (batcher != null) {
+                batcher.add(r, frame);
+            } else {
+                broadcaster.sendTo(r.members, frame);
             }
-            if (!toRemove.isEmpty()) {
-                sesiones.removeAll(toRemove);
+        }
+        // y a los miembros de la misma sala conectados a otros nodos
+        cluster.relay(room, frame);
+    }
+
+    private void endUpload(Session session, String fileId) {
+        UploadState st = uploads.get(fileId);
+        if (st == null) return;
+        if (st.expectedSize >= 0 && !st.isComplete()) {
+            // faltan rangos: no se cierra, el cliente puede reenviarlos
+            sendUploadStatus(session, st);
+            return;
+        }
+        if (!uploads.remove(fileId, st)) return;
+        admission.uploadFinished();
+        progress.finish(fileId);
+        try {
+            // el contenido se guarda una vez por hash: si ya estaba, se comparte el existente
+            String hash = st.complete();
+            UploadStore.Committed c = store.commit(st.tmpPath, hash, st.name);
+            Log.info("Subida terminada (real) del archivo %s -> %s (recibidos=%d, duplicado=%s)",
+                    st.name, c.blob.path, st.received(), c.duplicate);
+            // solo a este nodo: el hash y la ruta apuntan al almacén local y /download no sale del nodo
+            broadcaster.broadcast(Frame.system("upload_done")
+                    .field("fileId", fileId)
+                    .field("file", st.name)
+                    .field("hash", hash)
+                    .field("size", c.blob.size)
+                    .field("duplicate", c.duplicate)
+                    .field("path", c.blob.path.toString())
+                    .build());
+        } catch (IOException e) {
+            Log.warn("Error cerrando upload: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Las subidas a medias de una sesión que se cierra dejan de ocupar hueco: se cierran conservando
+     * el bitmap y un upload_start posterior (/resume) las reabre donde se quedaron.
+     */
+    private static void abandonUploads(Session session) {
+        for (UploadState st : uploads.values()) {
+            if (st.owner == session) park(st);
+        }
+    }
+
+    /** Cierra una subida abierta guardando su bitmap (checkpoint) para reanudarla después. */
+    private static void park(UploadState st) {
+        if (!uploads.remove(st.fileId, st)) return;
+        admission.uploadFinished();
+        progress.finish(st.fileId);
+        try {
+            st.close();
+        } catch (IOException e) {
+            Log.warn("Error cerrando upload abandonado %s: %s", st.fileId, e.getMessage());
+        }
+        Log.debug("Subida %s pendiente de reanudar (%d bytes recibidos)", st.fileId, st.received());
+    }
+
+    /** Fuerza la inicialización del endpoint (pools, historial, almacén) y de las clases del camino de envío. */
+    static void preload() {
+        // un chat de prueba por los dos codificadores y de vuelta por el parser de entrada (sin enviarlo)
+        Frame f = Frame.chat(0, RoomRegistry.DEFAULT_ROOM, "preload", "preload");
+        f.binary();
+        Log.debug("Precarga lista: %s (%d sesiones)", new JSONObject(f.text()).optString("type"), broadcaster.size());
+    }
+
+    /**
+     * Drenado ordenado antes de parar el contenedor, en como mucho {@code millis} ms:
+     * - no se aceptan conexiones ni subidas nuevas, y se avisa a todos con el evento server_draining
+     * - se espera a que las subidas abiertas terminen, WORKER_POOL se vacíe y las colas de salida se envíen
+     * - lo que no terminó a tiempo se guarda: las subidas con su bitmap (reanudables en el siguiente arranque)
+     * - se entregan los lotes de chat pendientes, se cierran las sesiones (GOING_AWAY) y después historial y cluster
+     * Solo tiene efecto la primera llamada.
+     */
+    static void drain(long millis) {
+        if (draining) return;
+        draining = true;
+        long t0 = System.nanoTime();
+        long deadline = t0 + millis * 1_000_000;
+        // el último cuarto se reserva para vaciar el pool, los lotes y las colas que queden
+        long waitUntil = deadline - millis * 1_000_000 / 4;
+        Log.info("Drenando: %d sesiones, %d subidas abiertas, %d tareas en WORKER_POOL (máx. %d ms)",
+                broadcaster.size(), uploads.size(), WORKER_POOL.queueDepth() + WORKER_POOL.activeCount(), millis);
+        broadcaster.broadcast(Frame.system("server_draining").field("drainMs", millis).build());
+        try {
+            while (System.nanoTime() - waitUntil < 0
+                    && (!uploads.isEmpty() || WORKER_POOL.queueDepth() + WORKER_POOL.activeCount() > 0 || broadcaster.busyOutboxes() > 0)) {
+                Thread.sleep(20);
             }
+            int parked = uploads.size();
+            for (UploadState st : uploads.values()) {
+                park(st);
+            }
+            WORKER_POOL.shutdown();
+            if (!WORKER_POOL.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                Log.warn("WORKER_POOL no terminó a tiempo: %d tareas descartadas", WORKER_POOL.shutdownNow().size());
+            }
+            if (batcher != null) batcher.close(Math.max(0, deadline - System.nanoTime()));
+            while (System.nanoTime() - deadline < 0 && broadcaster.busyOutboxes() > 0) {
+                Thread.sleep(20);
+            }
+            Log.info("Drenado en %d ms: %d subidas guardadas para reanudar, %d colas de salida sin vaciar",
+                    (System.nanoTime() - t0) / 1_000_000, parked, broadcaster.busyOutboxes());
+        } catch (InterruptedException e) {
+            WORKER_POOL.shutdownNow();
+            Thread.currentThread().interrupt();
         }
+        for (Outbox o : broadcaster.outboxes()) {
+            try {
+                o.session().close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "server_shutdown"));
+            } catch (IOException e) {
+                Log.debug("Error cerrando sesión: %s", e.getMessage());
+            }
+        }
+        Log.info("Worker pool: %s", WORKER_POOL);
+        Log.info("%s", documents);
+        if (batcher != null) Log.info("%s", batcher);
+        chatHistory.close();
+        if (cluster.enabled()) Log.info("%s", cluster);
+        cluster.close();
+    }
+
+    private static void joinRoom(Session session, String room, boolean announceAlways) {
+        if (!RoomRegistry.isValidName(room)) {
+            broadcaster.send(session, Frame.system("invalid_room").field("room", room).build());
+            return;
+        }
+        RoomRegistry.Join joined = rooms.join(session, room);
+        if (joined == RoomRegistry.Join.LIMIT) {
+            broadcaster.send(session, Frame.system("too_many_rooms").field("room", room).build());
+            return;
+        }
+        if (joined == RoomRegistry.Join.ADDED || announceAlways) {
+            RoomRegistry.Room r = rooms.get(room);
+            if (r != null) broadcaster.sendTo(r.members, roomEvent("user_joined", room, session));
+        }
+        broadcaster.send(session, roomEvent("joined", room, session));
+        // replay inmediato de lo último de la sala: del ring buffer y, si no alcanza, del final de la sala en el log
+        RoomRegistry.Room r = rooms.get(room);
+        if (r != null && JOIN_REPLAY > 0) {
+            replay(session, r, chatHistory.tailSince(r, JOIN_REPLAY), JOIN_REPLAY);
+        }
+    }
+
+    /**
+     * Envía a la sesión, en un único frame {"type":"history",...,"items":[...]}, los mensajes
+     * de la sala con seq > since (así un replay largo no desborda su cola de salida).
+     */
+    private static void replay(Session session, RoomRegistry.Room r, long since, int limit) {
+        List<Frame> frames = chatHistory.since(r, since, limit);
+        broadcaster.send(session, FrameWriter.begin("history")
+                .field("room", r.name)
+                .field("since", since)
+                .field("lastSeq", chatHistory.lastSeq())
+                .frames("items", frames)
+                .build());
+    }
+
+    private static Frame roomEvent(String event, String room, Session session) {
+        return Frame.system(event)
+                .field("room", room)
+                .field("user", identity(session))
+                .build();
+    }
+
+    /**
+     * Identidad de la sesión: el nombre con el que se presentó (join, o el primer chat en clientes sin join),
+     * que ya no cambia; el "user" de los mensajes posteriores se ignora. Con ella van los límites por usuario,
+     * los trabajos de PDF y los avisos de sala. Antes de presentarse, el id de sesión.
+     */
+    static String identity(Session session) {
+        Object u = session.getUserProperties().get(USER_KEY);
+        return u != null ? u.toString() : session.getId();
+    }
+
+    /** Fija la identidad de la sesión si aún no tiene; devuelve la que queda. */
+    private static String bindIdentity(Session session, String user) {
+        Object prev = session.getUserProperties().putIfAbsent(USER_KEY, user);
+        return prev != null ? prev.toString() : user;
+    }
+
+    private static boolean isValidFileId(String fileId) {
+        return fileId.length() > 0 && fileId.length() <= 64 && fileId.matches("[A-Za-z0-9._-]+") && !fileId.startsWith(".");
+    }
+
+    private static String safeName(String name) {
+        String n = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_");
+        return n.isBlank() ? "uploaded.bin" : n;
+    }
+
+    /** Para que ChatServer exponga las métricas (y fuerce la inicialización del endpoint). */
+    static Metrics metrics() {
+        return Metrics.GLOBAL;
+    }
+
+    private static void record(String tipo, long t0) {
+        String k = TIPOS.contains(tipo) ? tipo : "other";
+        MESSAGES_IN.get(k).increment();
+        HANDLE_TIME.get(k).record((System.nanoTime() - t0) / 1000);
+    }
+
+    private void broadcast(Frame frame) {
+        // sin lock global: cada sesión encola el mismo frame en su propio Outbox acotado
+        broadcaster.broadcast(frame);
+        cluster.relay(null, frame);
     }
 }
@@ -0,0 +1,29 @@
+package com.chat.server;
+
+import com.chat.common.PerMessageDeflate;
+import jakarta.websocket.Extension;
+import jakarta.websocket.server.ServerEndpointConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configurador de {@link ChatEndpoint}: instala permessage-deflate ({@link PerMessageDeflate},
+ * -Dchat.ws.deflate=false para no aceptarlo). Las ofertas que no podemos cumplir (ventana &lt; 15 bits)
+ * se descartan antes de negociar, así el cliente puede caer a otra oferta o a la conexión sin comprimir.
+ * El resto (subprotocolo, instancias del endpoint) lo decide el configurador por defecto del contenedor.
+ */
+public class ChatEndpointConfigurator extends ServerEndpointConfig.Configurator {
+
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        if (!PerMessageDeflate.ENABLED) return super.getNegotiatedExtensions(installed, requested);
+        List<Extension> instaladas = new ArrayList<>(installed);
+        instaladas.add(PerMessageDeflate.instance());
+        List<Extension> ofertas = new ArrayList<>(requested.size());
+        for (Extension e : requested) {
+            if (!PerMessageDeflate.NAME.equals(e.getName()) || PerMessageDeflate.acceptable(e)) ofertas.add(e);
+        }
+        return super.getNegotiatedExtensions(instaladas, ofertas);
+    }
+}
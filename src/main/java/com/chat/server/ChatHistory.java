@@ -0,0 +1,76 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Últimos mensajes de chat de una sala en memoria (ring buffer acotado).
+ * Sirve para el replay instantáneo al entrar en la sala y para los trabajos de documentos.
+ */
+final class ChatHistory {
+
+    static final class Entry {
+        final long seq;
+        final long timestamp;
+        final String user;
+        final String text;
+        final Frame frame;
+
+        Entry(long seq, long timestamp, String user, String text, Frame frame) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.user = user;
+            this.text = text;
+            this.frame = frame;
+        }
+    }
+
+    private final Entry[] ring;
+    private int head = 0;
+    private int size = 0;
+    // todos los mensajes con seq > coveredFrom están en el buffer
+    private long coveredFrom;
+
+    ChatHistory(int capacity) {
+        this(capacity, 0);
+    }
+
+    /** @param coveredFrom seq global en el momento de crear el buffer (lo anterior solo está en el log) */
+    ChatHistory(int capacity, long coveredFrom) {
+        this.ring = new Entry[Math.max(1, capacity)];
+        this.coveredFrom = coveredFrom;
+    }
+
+    synchronized void add(Entry e) {
+        ring[(head + size) % ring.length] = e;
+        if (size < ring.length) {
+            size++;
+        } else {
+            coveredFrom = ring[head].seq;
+            head = (head + 1) % ring.length;
+        }
+    }
+
+    /**
+     * Mensajes con seq > since si el buffer los contiene todos; null si parte de ellos
+     * ya se descartaron o son anteriores al buffer (hay que ir al log en disco).
+     */
+    synchronized List<Entry> since(long since) {
+        if (since < coveredFrom) return null;
+        List<Entry> out = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Entry e = ring[(head + i) % ring.length];
+            if (e.seq > since) out.add(e);
+        }
+        return out;
+    }
+
+    /** Copia de los mensajes en orden cronológico. */
+    synchronized List<Entry> snapshot() {
+        List<Entry> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            out.add(ring[(head + i) % ring.length]);
+        }
+        return out;
+    }
+}
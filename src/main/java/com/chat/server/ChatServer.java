@@ -1,23 +1,117 @@
 package com.chat.server;
 
+import com.chat.common.Log;
+import jakarta.websocket.ClientEndpointConfig;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
 import org.glassfish.tyrus.server.Server;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.net.URI;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Arranque del servidor (configuración en {@link ServerConfig}).
+ * - Interactivo: para con ENTER o al cerrarse la entrada estándar
+ * - --headless / -Dchat.server.headless=true: sin consola, para con SIGTERM/SIGINT
+ * En los dos casos la parada es la misma: drenado del endpoint ({@link ChatEndpoint#drain}, -Dchat.server.drain.s),
+ * métricas, contenedor y log.
+ * --cds-train arranca, ejercita una conexión local y para: pensado para generar un archivo AppCDS con
+ * -XX:ArchiveClassesAtExit=chat.jsa y arrancar después con -XX:SharedArchiveFile=chat.jsa.
+ */
 public class ChatServer {
 
-    public static void main(String[] args) { 
-        Server server = new Server("localhost", 8080, "/ws", ChatEndpoint.class);
+    private final ServerConfig config;
+    private final Server server;
+    private MetricsHttpServer metrics;
+    private boolean stopped;
+
+    private ChatServer(ServerConfig config) {
+        this.config = config;
+        this.server = new Server(config.host, config.port, config.path, config.tyrusProperties(), ChatEndpoint.class);
+    }
+
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.load(args);
+        long t0 = System.nanoTime();
+        if (config.preload) {
+            // lo que, si no, se haría con la primera conexión: pools, historial, almacén, codificadores
+            ChatEndpoint.preload();
+        }
+        ChatServer chat = new ChatServer(config);
+        CountDownLatch done = new CountDownLatch(1);
+        // SIGTERM/SIGINT (y el fin normal de la JVM) pasan por el mismo drenado
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            chat.stop();
+            done.countDown();
+        }, "chat-server-shutdown"));
         try {
-            server.start();
-            System.out.println("Servidor WebSocket activo en ws://localhost:8080/ws/chat");
-            System.out.println("Presiona ENTER para detener...");
-            new Scanner(System.in).nextLine(); // esperar input
+            chat.server.start();
+            System.out.printf("Servidor WebSocket activo en ws://%s:%d%s/chat (arranque en %d ms)%n",
+                    config.host, config.port, config.path, (System.nanoTime() - t0) / 1_000_000);
+            Log.info("%s", config);
+            // métricas en HTTP local (-Dchat.metrics.port, 0 = desactivado)
+            chat.metrics = MetricsHttpServer.startFromSystemProperties(ChatEndpoint.metrics());
+            if (config.cdsTrain) {
+                chat.warmUp();
+            } else if (config.headless) {
+                System.out.println("Sin consola: se detiene con SIGTERM/SIGINT");
+                done.await();
+                return;
+            } else {
+                System.out.println("Presiona ENTER para detener...");
+                Scanner in = new Scanner(System.in);
+                if (in.hasNextLine()) in.nextLine(); // esperar input (o fin de la entrada)
+            }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            server.stop();
-            System.out.println("Servidor detenido.");
         }
+        chat.stop();
+    }
+
+    /** Drenado y parada; solo la primera llamada hace algo, las demás esperan a que termine. */
+    private synchronized void stop() {
+        if (stopped) return;
+        stopped = true;
+        ChatEndpoint.drain(config.drainMillis);
+        if (metrics != null) metrics.stop();
+        server.stop();
+        System.out.println("Servidor detenido.");
+        Log.flush();
+    }
+
+    /**
+     * Una sesión de prueba contra el propio servidor (join, history) para cargar el camino habitual.
+     * No envía chats: quedarían en el historial.
+     */
+    private void warmUp() throws Exception {
+        // la respuesta al history pedido llega la última: con ella ya ha pasado todo. Se reconoce por su since
+        // (-1), que el replay automático del join nunca usa
+        CountDownLatch replies = new CountDownLatch(1);
+        URI uri = URI.create("ws://" + (config.host.equals("0.0.0.0") ? "localhost" : config.host) + ":" + config.port + config.path + "/chat");
+        Session s = ContainerProvider.getWebSocketContainer().connectToServer(new Endpoint() {
+            @Override
+            public void onOpen(Session session, EndpointConfig cfg) {
+                session.addMessageHandler(String.class, (MessageHandler.Whole<String>) m -> {
+                    try {
+                        JSONObject j = new JSONObject(m);
+                        if ("history".equals(j.optString("type")) && j.optLong("since", 0) == -1) replies.countDown();
+                    } catch (JSONException e) {
+                        // lotes de chat u otros frames que no son un objeto: no son la respuesta esperada
+                    }
+                });
+            }
+        }, ClientEndpointConfig.Builder.create().build(), uri);
+        s.getBasicRemote().sendText("{\"type\":\"system\",\"event\":\"join\",\"user\":\"cds\",\"room\":\"" + RoomRegistry.DEFAULT_ROOM + "\"}");
+        s.getBasicRemote().sendText("{\"type\":\"history\",\"room\":\"" + RoomRegistry.DEFAULT_ROOM + "\",\"since\":-1,\"limit\":1}");
+        boolean ok = replies.await(5, TimeUnit.SECONDS);
+        s.close();
+        System.out.println("Entrenamiento CDS " + (ok ? "completado" : "incompleto (sin respuestas)"));
     }
 }
@@ -0,0 +1,18 @@
+package com.chat.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Bus de mensajes entre nodos del servidor. Implementación: {@link TcpPeerBus} (malla TCP/NIO).
+ */
+interface ClusterBus extends AutoCloseable {
+
+    /** Envía el mensaje a los demás nodos (nunca se entrega de vuelta al propio nodo). */
+    void publish(ClusterMessage message);
+
+    /** Registra quién recibe los mensajes de los demás nodos. */
+    void subscribe(Consumer<ClusterMessage> listener);
+
+    @Override
+    void close();
+}
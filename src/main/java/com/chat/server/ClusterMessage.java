@@ -0,0 +1,58 @@
+package com.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Mensaje que se reenvía entre nodos del cluster: un frame ya codificado, la sala destino
+ * (null = todas las sesiones) y un id único (nodo:contador) para suprimir duplicados.
+ * Formato en el cable: [int len][short idLen][id][short roomLen][room][frame UTF-8].
+ */
+final class ClusterMessage {
+
+    final String id;
+    final String room;
+    final byte[] frame;
+
+    ClusterMessage(String id, String room, byte[] frame) {
+        this.id = id;
+        this.room = room;
+        this.frame = frame;
+    }
+
+    String originNode() {
+        int i = id.lastIndexOf(':');
+        return i > 0 ? id.substring(0, i) : id;
+    }
+
+    /** Codifica el mensaje con su prefijo de longitud, listo para escribir en un socket. */
+    ByteBuffer encode() {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = room != null ? room.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int len = 2 + idBytes.length + 2 + roomBytes.length + frame.length;
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len);
+        b.putShort((short) idBytes.length).put(idBytes);
+        // roomLen = -1 significa "todas las sesiones"
+        b.putShort(room != null ? (short) roomBytes.length : (short) -1).put(roomBytes);
+        b.put(frame);
+        b.flip();
+        return b;
+    }
+
+    /** Decodifica el cuerpo de un mensaje (sin el prefijo de longitud). */
+    static ClusterMessage decode(ByteBuffer body) {
+        byte[] idBytes = new byte[body.getShort()];
+        body.get(idBytes);
+        short roomLen = body.getShort();
+        String room = null;
+        if (roomLen >= 0) {
+            byte[] roomBytes = new byte[roomLen];
+            body.get(roomBytes);
+            room = new String(roomBytes, StandardCharsets.UTF_8);
+        }
+        byte[] frame = new byte[body.remaining()];
+        body.get(frame);
+        return new ClusterMessage(new String(idBytes, StandardCharsets.UTF_8), room, frame);
+    }
+}
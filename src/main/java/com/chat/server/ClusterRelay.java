@@ -0,0 +1,135 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Capa de clustering: reenvía por un {@link ClusterBus} lo que se difunde en este nodo y entrega
+ * en las sesiones locales lo que llega de los demás. Los duplicados se suprimen por id de mensaje.
+ * - -Dchat.cluster.bus=none|tcp (por defecto none: un solo nodo)
+ * - -Dchat.cluster.node.id, -Dchat.cluster.listen=host:puerto (por defecto 127.0.0.1:9090), -Dchat.cluster.peers=host:puerto,...
+ * - -Dchat.cluster.secret: secreto compartido con el que se autentican los nodos (ver {@link TcpPeerBus})
+ * Los números de secuencia y el historial siguen siendo locales de cada nodo.
+ */
+final class ClusterRelay {
+
+    private final String nodeId;
+    private final ClusterBus bus;
+    private final Broadcaster broadcaster;
+    private final RoomRegistry rooms;
+    private final AtomicLong contador = new AtomicLong();
+    private final Map<String, Boolean> vistos;
+
+    final LongAdder relayed = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+
+    ClusterRelay(String nodeId, ClusterBus bus, Broadcaster broadcaster, RoomRegistry rooms, int dedupSize) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+        this.broadcaster = broadcaster;
+        this.rooms = rooms;
+        this.vistos = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > dedupSize;
+            }
+        });
+        if (bus != null) bus.subscribe(this::onRemote);
+    }
+
+    /** Crea la capa según las propiedades de sistema; con bus=none devuelve un relay que no reenvía nada. */
+    static ClusterRelay fromSystemProperties(Broadcaster broadcaster, RoomRegistry rooms) {
+        String nodeId = System.getProperty("chat.cluster.node.id", UUID.randomUUID().toString().substring(0, 8));
+        String tipo = System.getProperty("chat.cluster.bus", "none").trim().toLowerCase();
+        int dedup = Integer.getInteger("chat.cluster.dedup.size", 100_000);
+        ClusterBus bus = null;
+        try {
+            switch (tipo) {
+                case "tcp":
+                    bus = new TcpPeerBus(parseAddress(System.getProperty("chat.cluster.listen", "127.0.0.1:9090")),
+                            parseAddresses(System.getProperty("chat.cluster.peers", "")),
+                            Integer.getInteger("chat.cluster.max.queued", 10_000),
+                            System.getProperty("chat.cluster.secret", ""));
+                    break;
+                case "none":
+                    break;
+                default:
+                    throw new IllegalArgumentException("chat.cluster.bus desconocido: " + tipo);
+            }
+        } catch (IOException e) {
+            Log.error("No se pudo iniciar el bus del cluster (%s), nodo aislado: %s", tipo, e.getMessage());
+        }
+        if (bus != null) Log.info("Nodo de cluster %s (bus=%s)", nodeId, tipo);
+        return new ClusterRelay(nodeId, bus, broadcaster, rooms, dedup);
+    }
+
+    boolean enabled() {
+        return bus != null;
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    /** Reenvía a los demás nodos un frame de sala (null = para todas las sesiones). */
+    void relay(String room, Frame frame) {
+        if (bus == null) return;
+        String id = nodeId + ":" + contador.incrementAndGet();
+        vistos.put(id, Boolean.TRUE);
+        byte[] bytes = new byte[frame.size()];
+        frame.utf8().get(bytes);
+        bus.publish(new ClusterMessage(id, room, bytes));
+        relayed.increment();
+    }
+
+    void close() {
+        if (bus != null) bus.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cluster[node=%s relayed=%d delivered=%d duplicates=%d]",
+                nodeId, relayed.sum(), delivered.sum(), duplicates.sum());
+    }
+
+    private void onRemote(ClusterMessage m) {
+        if (nodeId.equals(m.originNode()) || vistos.putIfAbsent(m.id, Boolean.TRUE) != null) {
+            duplicates.increment();
+            return;
+        }
+        Frame frame = new Frame(m.frame, null, "cluster");
+        if (m.room == null) {
+            broadcaster.broadcast(frame);
+        } else {
+            RoomRegistry.Room r = rooms.get(m.room);
+            if (r != null) broadcaster.sendTo(r.members, frame);
+        }
+        delivered.increment();
+    }
+
+    private static InetSocketAddress parseAddress(String hostPort) {
+        String hp = hostPort.trim();
+        int i = hp.lastIndexOf(':');
+        if (i <= 0) throw new IllegalArgumentException("Dirección inválida (host:puerto): " + hostPort);
+        return new InetSocketAddress(hp.substring(0, i), Integer.parseInt(hp.substring(i + 1)));
+    }
+
+    private static List<InetSocketAddress> parseAddresses(String csv) {
+        List<InetSocketAddress> out = new ArrayList<>();
+        for (String s : csv.split(",")) {
+            if (!s.isBlank()) out.add(parseAddress(s));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,452 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+import jakarta.websocket.Session;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Motor de trabajos de generación de documentos (PDF del historial de chat).
+ * - Cola de prioridad acotada (-Dchat.pdf.queue.capacity); cada trabajo se ejecuta en el executor
+ *   de workers y siempre se toma el de mayor prioridad pendiente
+ * - Límite de trabajos pendientes por usuario (-Dchat.pdf.per.user) y cancelación por jobId; el usuario
+ *   es la identidad de la sesión ({@link ChatEndpoint#identity}), no un nombre que mande el cliente
+ * - Prioridad entre {@link #PRIORITY_MIN} y {@link #PRIORITY_MAX} (se acota la que pida el cliente)
+ * - Caché direccionada por contenido: sha256(título + contenido) -> {@code <hash>.pdf} en -Dchat.pdf.dir;
+ *   una petición idéntica devuelve el fichero existente sin volver a renderizar. Tamaño acotado
+ *   (-Dchat.pdf.cache.max.mb, 256) con expulsión LRU y caducidad (-Dchat.pdf.cache.ttl.h, 168; 0 = sin caducidad),
+ *   como {@link UploadStore}
+ * - Métricas: trabajos/s, latencia media de cola y de render, aciertos de caché
+ */
+final class DocumentJobEngine {
+
+    static final int PRIORITY_MIN = 0;
+    static final int PRIORITY_NORMAL = 5;
+    static final int PRIORITY_MAX = 9;
+
+    private final Broadcaster broadcaster;
+    private final Executor executor;
+    private final Path dir;
+    private final int queueCapacity;
+    private final int perUserLimit;
+    private final long cacheMaxBytes;
+    private final long cacheTtlMillis;
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(16,
+            (a, b) -> a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a.seq, b.seq));
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, Integer> porUsuario = new ConcurrentHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    // hash -> PDF en caché; orden de acceso: el primero es el menos usado recientemente (lock: el propio mapa)
+    private final LinkedHashMap<String, CachedPdf> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheBytes;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+
+    private static final int PENDING = 0, CANCELLED = 1, DONE = 2;
+
+    static final class Job {
+        final String id;
+        final long seq;
+        final String user;
+        final String title;
+        final int priority;
+        final List<String> lines;
+        final Session requester;
+        final long enqueuedNanos = System.nanoTime();
+        // PENDING -> CANCELLED (cancel) o PENDING -> DONE (pdf_ready): solo gana uno de los dos
+        final AtomicInteger state = new AtomicInteger(PENDING);
+
+        Job(String id, long seq, String user, String title, int priority, List<String> lines, Session requester) {
+            this.id = id;
+            this.seq = seq;
+            this.user = user;
+            this.title = title;
+            this.priority = priority;
+            this.lines = lines;
+            this.requester = requester;
+        }
+
+        boolean cancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    /** PDF renderizado en la caché. */
+    private static final class CachedPdf {
+        final String hash;
+        final long size;
+        final Path path;
+        long lastAccess;
+
+        CachedPdf(String hash, long size, Path path, long lastAccess) {
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    DocumentJobEngine(Broadcaster broadcaster, Executor executor, Path dir, int queueCapacity, int perUserLimit,
+                      long cacheMaxBytes, long cacheTtlMillis) {
+        this.broadcaster = broadcaster;
+        this.executor = executor;
+        this.dir = dir;
+        this.queueCapacity = queueCapacity;
+        this.perUserLimit = perUserLimit;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.cacheTtlMillis = cacheTtlMillis;
+        loadCache();
+    }
+
+    static DocumentJobEngine fromSystemProperties(Broadcaster broadcaster, Executor executor) {
+        Path dir = Path.of(System.getProperty("chat.pdf.dir",
+                Path.of(System.getProperty("java.io.tmpdir"), "chat-pdf").toString()));
+        return new DocumentJobEngine(broadcaster, executor, dir,
+                Integer.getInteger("chat.pdf.queue.capacity", 100),
+                Integer.getInteger("chat.pdf.per.user", 2),
+                Long.getLong("chat.pdf.cache.max.mb", 256) * 1024 * 1024,
+                Long.getLong("chat.pdf.cache.ttl.h", 168) * 3600_000);
+    }
+
+    /**
+     * Encola la generación del documento. Si el mismo título+contenido ya se renderizó,
+     * responde pdf_ready al momento. Devuelve el jobId, o null si se rechazó.
+     */
+    String submit(Session requester, String user, String title, int priority, List<ChatHistory.Entry> history) {
+        priority = Math.max(PRIORITY_MIN, Math.min(PRIORITY_MAX, priority));
+        List<String> lines = toLines(history);
+        String id = contentHash(title, lines);
+        Path cached = cachedPdf(id);
+        if (cached != null) {
+            cacheHits.increment();
+            completed.increment();
+            broadcastReady(id, title, cached, true);
+            return id;
+        }
+        if (!reserve(user)) {
+            reject(requester, title, "user_limit");
+            return null;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            release(user);
+            reject(requester, title, "queue_full");
+            return null;
+        }
+        // el jobId es el hash de contenido con un sufijo por petición (se puede cancelar por separado)
+        long n = seq.incrementAndGet();
+        Job job = new Job(id + "-" + n, n, user, title, priority, lines, requester);
+        jobs.put(job.id, job);
+        queue.add(job);
+        broadcaster.broadcast(Frame.system("pdf_creating")
+                .field("jobId", job.id)
+                .field("title", title)
+                .build());
+        try {
+            executor.execute(this::runNext);
+        } catch (RejectedExecutionException e) {
+            // el pool ya no acepta tareas (drenado): deshacer los cupos y avisar con el jobId ya anunciado
+            if (queue.remove(job)) finished(job);
+            rejected.increment();
+            broadcaster.send(requester, Frame.system("pdf_rejected")
+                    .field("jobId", job.id)
+                    .field("title", title)
+                    .field("reason", "unavailable")
+                    .build());
+            return null;
+        }
+        return job.id;
+    }
+
+    /**
+     * Cancela un trabajo pendiente o en curso; solo su usuario puede hacerlo. Devuelve false
+     * (y no avisa) si el trabajo no existe, es de otro usuario o ya se anunció como listo.
+     */
+    boolean cancel(String jobId, String user) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.user.equals(user)) return false;
+        if (!job.state.compareAndSet(PENDING, CANCELLED)) return false;
+        if (queue.remove(job)) {
+            // nunca llegó a ejecutarse: liberar cupos ya
+            finished(job);
+            cancelled.increment();
+        }
+        broadcaster.send(job.requester, Frame.system("pdf_cancelled")
+                .field("jobId", jobId)
+                .field("title", job.title)
+                .build());
+        return true;
+    }
+
+    int queueDepth() {
+        return queued.get();
+    }
+
+    long completedCount() {
+        return completed.sum();
+    }
+
+    /** Trabajos completados por segundo desde el arranque. */
+    double throughput() {
+        double secs = (System.nanoTime() - startNanos) / 1e9;
+        return secs > 0 ? completed.sum() / secs : 0;
+    }
+
+    /** Latencia media en cola (ms) de los trabajos renderizados. */
+    double avgQueueMillis() {
+        long n = rendered.sum();
+        return n > 0 ? queueNanos.sum() / 1e6 / n : 0;
+    }
+
+    double avgRenderMillis() {
+        long n = rendered.sum();
+        return n > 0 ? renderNanos.sum() / 1e6 / n : 0;
+    }
+
+    @Override
+    public String toString() {
+        int cachedFiles;
+        long cachedBytes;
+        synchronized (cache) {
+            cachedFiles = cache.size();
+            cachedBytes = cacheBytes;
+        }
+        return String.format("pdf-jobs[queued=%d, completed=%d, cacheHits=%d, cancelled=%d, rejected=%d, failed=%d, %.2f jobs/s, queue=%.1f ms, render=%.1f ms, cache=%d ficheros/%d bytes, evicted=%d]",
+                queueDepth(), completed.sum(), cacheHits.sum(), cancelled.sum(), rejected.sum(), failed.sum(),
+                throughput(), avgQueueMillis(), avgRenderMillis(), cachedFiles, cachedBytes, cacheEvictions.sum());
+    }
+
+    /** Tarea del executor: procesa el trabajo de mayor prioridad pendiente (no necesariamente el que la lanzó). */
+    private void runNext() {
+        Job job = queue.poll();
+        if (job == null) return; // ya lo cancelaron o lo tomó otra tarea
+        try {
+            if (job.cancelled()) {
+                cancelled.increment();
+                return;
+            }
+            long started = System.nanoTime();
+            String hash = job.id.substring(0, job.id.lastIndexOf('-'));
+            Path dest = cachedPdf(hash);
+            boolean cached = dest != null;
+            if (!cached) {
+                byte[] pdf = PdfRenderer.render(job.title, job.lines);
+                if (job.cancelled()) {
+                    cancelled.increment();
+                    return;
+                }
+                Files.createDirectories(dir);
+                dest = dir.resolve(hash + ".pdf");
+                Path tmp = Files.createTempFile(dir, hash, ".tmp");
+                Files.write(tmp, pdf);
+                Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                addToCache(hash, dest, pdf.length);
+                rendered.increment();
+                queueNanos.add(started - job.enqueuedNanos);
+                renderNanos.add(System.nanoTime() - started);
+            } else {
+                // otro trabajo idéntico terminó mientras este esperaba en cola
+                cacheHits.increment();
+            }
+            // una cancelación que llegó durante el render ya avisó con pdf_cancelled: no anunciar también pdf_ready
+            if (!job.state.compareAndSet(PENDING, DONE)) {
+                cancelled.increment();
+                return;
+            }
+            completed.increment();
+            Log.info("PDF listo: %s -> %s (cola=%.1f ms)", job.title, dest, (started - job.enqueuedNanos) / 1e6);
+            broadcastReady(job.id, job.title, dest, cached);
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            Log.error("Error generando PDF %s: %s", job.id, e.getMessage());
+            broadcaster.send(job.requester, Frame.system("pdf_failed")
+                    .field("jobId", job.id)
+                    .field("title", job.title)
+                    .build());
+        } finally {
+            finished(job);
+        }
+    }
+
+    private void finished(Job job) {
+        jobs.remove(job.id);
+        queued.decrementAndGet();
+        release(job.user);
+    }
+
+    /** Ocupa un cupo de trabajo pendiente del usuario; false si ya tiene perUserLimit. */
+    private boolean reserve(String user) {
+        boolean[] ok = new boolean[1];
+        porUsuario.compute(user, (u, n) -> {
+            int pendientes = n == null ? 0 : n;
+            if (pendientes >= perUserLimit) return n;
+            ok[0] = true;
+            return pendientes + 1;
+        });
+        return ok[0];
+    }
+
+    private void release(String user) {
+        // quitar la entrada al volver a 0 para que el mapa no crezca con cada identidad que pasó por aquí
+        porUsuario.computeIfPresent(user, (u, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /** Ruta del PDF en caché para ese hash, o null si no está o ha caducado. Cuenta como acceso para el LRU. */
+    private Path cachedPdf(String hash) {
+        synchronized (cache) {
+            CachedPdf c = cache.get(hash);
+            if (c == null) return null;
+            long now = System.currentTimeMillis();
+            if (expired(c, now) || !Files.exists(c.path)) {
+                cache.remove(hash);
+                deleteCached(c);
+                return null;
+            }
+            c.lastAccess = now;
+            try {
+                Files.setLastModifiedTime(c.path, FileTime.fromMillis(now));
+            } catch (IOException e) {
+                // solo afecta al orden LRU tras un reinicio
+            }
+            return c.path;
+        }
+    }
+
+    private void addToCache(String hash, Path path, long size) {
+        synchronized (cache) {
+            long now = System.currentTimeMillis();
+            CachedPdf old = cache.put(hash, new CachedPdf(hash, size, path, now));
+            if (old != null) cacheBytes -= old.size;
+            cacheBytes += size;
+            evictCache(hash, now);
+        }
+    }
+
+    /** Expulsa caducados y, si se pasa de cacheMaxBytes, los menos usados (nunca {@code keep}). Con el lock de la caché. */
+    private void evictCache(String keep, long now) {
+        Iterator<CachedPdf> it = cache.values().iterator();
+        while (it.hasNext()) {
+            CachedPdf c = it.next();
+            if (c.hash.equals(keep)) continue;
+            // orden LRU = lastAccess creciente: si este ni sobra ni ha caducado, los siguientes tampoco
+            if (cacheBytes <= cacheMaxBytes && !expired(c, now)) break;
+            it.remove();
+            deleteCached(c);
+        }
+    }
+
+    private void deleteCached(CachedPdf c) {
+        cacheBytes -= c.size;
+        cacheEvictions.increment();
+        try {
+            Files.deleteIfExists(c.path);
+        } catch (IOException e) {
+            Log.warn("No se pudo borrar %s de la caché de PDFs: %s", c.path, e.getMessage());
+        }
+    }
+
+    private boolean expired(CachedPdf c, long now) {
+        return cacheTtlMillis > 0 && now - c.lastAccess >= cacheTtlMillis;
+    }
+
+    /** Reconstruye el índice de la caché a partir de los ficheros (mtime = último acceso). */
+    private void loadCache() {
+        if (!Files.isDirectory(dir)) return;
+        List<CachedPdf> found = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.pdf")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                String hash = n.substring(0, n.length() - ".pdf".length());
+                if (hash.length() != 64 || !hash.matches("[0-9a-f]+") || !Files.isRegularFile(p)) continue;
+                found.add(new CachedPdf(hash, Files.size(p), p, Files.getLastModifiedTime(p).toMillis()));
+            }
+        } catch (IOException e) {
+            Log.warn("No se pudo leer la caché de PDFs en %s: %s", dir, e.getMessage());
+            return;
+        }
+        found.sort(Comparator.comparingLong(c -> c.lastAccess));
+        synchronized (cache) {
+            for (CachedPdf c : found) {
+                cache.put(c.hash, c);
+                cacheBytes += c.size;
+            }
+            evictCache(null, System.currentTimeMillis());
+            if (!cache.isEmpty()) Log.info("Caché de PDFs: %d ficheros, %d bytes en %s", cache.size(), cacheBytes, dir);
+        }
+    }
+
+    private void broadcastReady(String jobId, String title, Path path, boolean cached) {
+        broadcaster.broadcast(Frame.system("pdf_ready")
+                .field("jobId", jobId)
+                .field("title", title)
+                .field("path", path.toString())
+                .field("cached", cached)
+                .build());
+    }
+
+    private void reject(Session requester, String title, String reason) {
+        rejected.increment();
+        broadcaster.send(requester, Frame.system("pdf_rejected")
+                .field("title", title)
+                .field("reason", reason)
+                .build());
+    }
+
+    private static List<String> toLines(List<ChatHistory.Entry> history) {
+        SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+        List<String> lines = new ArrayList<>(history.size());
+        for (ChatHistory.Entry e : history) {
+            lines.add("[" + fmt.format(new Date(e.timestamp)) + "] " + e.user + ": " + e.text);
+        }
+        return lines;
+    }
+
+    private static String contentHash(String title, List<String> lines) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(title.getBytes(StandardCharsets.UTF_8));
+            for (String l : lines) {
+                md.update((byte) '\n');
+                md.update(l.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
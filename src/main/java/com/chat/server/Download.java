@@ -0,0 +1,121 @@
+package com.chat.server;
+
+import com.chat.common.BinaryFrame;
+import com.chat.common.Log;
+import jakarta.websocket.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Descarga de un fichero del {@link UploadStore} a una sesión.
+ * - El fichero se mapea en memoria por ventanas (-Dchat.download.map.mb, 64) y cada trozo es un slice
+ *   del mapeo: sin read() ni copia al heap. En JSON el slice se envía tal cual como frame binario;
+ *   en chat.bin.v1 hay que anteponer la cabecera DOWNLOAD_CHUNK y se copia una vez a un buffer reutilizado
+ * - Un solo trozo en vuelo ({@link Outbox#offerBulk}): el siguiente se prepara cuando el anterior ya salió,
+ *   así una descarga no llena la memoria ni retrasa el chat de la sesión
+ * - Protocolo: system download_start {hash,name,size,chunkSize}, trozos binarios en orden, system download_end
+ * - Una descarga a la vez por sesión
+ */
+final class Download {
+
+    static final int CHUNK_SIZE = Integer.getInteger("chat.download.chunk.size", 64 * 1024);
+    private static final long MAP_WINDOW = Math.max(1, Long.getLong("chat.download.map.mb", 64)) * 1024 * 1024;
+    private static final String ACTIVE = "download";
+
+    private static final LongAdder DOWNLOADS = Metrics.GLOBAL.counter(
+            "chat_downloads_total", "Descargas completadas");
+    private static final LongAdder DOWNLOAD_BYTES = Metrics.GLOBAL.counter(
+            "chat_download_bytes_total", "Bytes de ficheros enviados en descargas");
+
+    private final Broadcaster broadcaster;
+    private final Session session;
+    private final UploadStore.Blob blob;
+    private final boolean binary;
+    // cabecera + trozo en chat.bin.v1 (uno en vuelo: se reutiliza)
+    private final ByteBuffer framed;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long offset;
+
+    private Download(Broadcaster broadcaster, Session session, UploadStore.Blob blob) {
+        this.broadcaster = broadcaster;
+        this.session = session;
+        this.blob = blob;
+        this.binary = BinaryFrame.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+        this.framed = binary ? ByteBuffer.allocateDirect(BinaryFrame.headerSize(blob.hash) + CHUNK_SIZE) : null;
+    }
+
+    /** Empieza a enviar {@code blob} a la sesión; false si ya tiene una descarga en curso. */
+    static boolean start(Broadcaster broadcaster, Session session, UploadStore.Blob blob) {
+        Download d = new Download(broadcaster, session, blob);
+        if (session.getUserProperties().putIfAbsent(ACTIVE, d) != null) return false;
+        broadcaster.send(session, Frame.system("download_start")
+                .field("hash", blob.hash)
+                .field("name", blob.name)
+                .field("size", blob.size)
+                .field("chunkSize", CHUNK_SIZE)
+                .build());
+        d.next();
+        return true;
+    }
+
+    /** Envía el siguiente trozo, o download_end si ya no quedan. */
+    private void next() {
+        if (offset >= blob.size) {
+            finish();
+            return;
+        }
+        ByteBuffer chunk;
+        try {
+            chunk = slice();
+        } catch (IOException e) {
+            Log.warn("Descarga de %s abortada: %s", blob.hash, e.getMessage());
+            session.getUserProperties().remove(ACTIVE, this);
+            broadcaster.send(session, Frame.system("download_error").field("hash", blob.hash).field("reason", "io").build());
+            return;
+        }
+        int len = chunk.remaining();
+        ByteBuffer data = chunk;
+        if (binary) {
+            framed.clear();
+            BinaryFrame.writeHeader(framed, BinaryFrame.DOWNLOAD_CHUNK, (byte) 0, blob.hash, 0, offset, len);
+            data = framed.put(chunk).flip();
+        }
+        offset += len;
+        DOWNLOAD_BYTES.add(len);
+        if (!broadcaster.sendBulk(session, Frame.bulk(data, "download_chunk", this::next))) {
+            // sesión cerrada: el mapeo lo libera el GC
+            session.getUserProperties().remove(ACTIVE, this);
+        }
+    }
+
+    /** Trozo [offset, offset + CHUNK_SIZE) como slice del mapeo; mapea la ventana siguiente si hace falta. */
+    private ByteBuffer slice() throws IOException {
+        if (window == null || offset >= windowStart + window.capacity()) {
+            windowStart = offset;
+            long len = Math.min(MAP_WINDOW, blob.size - offset);
+            try (FileChannel ch = FileChannel.open(blob.path, StandardOpenOption.READ)) {
+                // el mapeo sigue siendo válido después de cerrar el canal
+                window = ch.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            }
+        }
+        int pos = (int) (offset - windowStart);
+        int len = Math.min(CHUNK_SIZE, window.capacity() - pos);
+        return window.slice(pos, len);
+    }
+
+    private void finish() {
+        window = null;
+        session.getUserProperties().remove(ACTIVE, this);
+        DOWNLOADS.increment();
+        broadcaster.send(session, Frame.system("download_end")
+                .field("hash", blob.hash)
+                .field("size", blob.size)
+                .build());
+    }
+}
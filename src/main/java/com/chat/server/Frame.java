@@ -0,0 +1,118 @@
+package com.chat.server;
+
+import com.chat.common.BinaryFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Mensaje saliente ya serializado. Se codifica una sola vez (UTF-8) y la misma
+ * instancia se comparte, en solo lectura, entre todas las sesiones destinatarias.
+ * Los frames de transferencia ({@link #bulk}) son solo binarios y van a una única sesión.
+ */
+final class Frame {
+
+    private final ByteBuffer utf8;
+    private final String text;
+    private final String coalesceKey;
+    private final String kind;
+    // codificación chat.bin.v1 del mismo mensaje (solo chat): se construye al primer envío binario
+    private Supplier<ByteBuffer> binaryEncoder;
+    private volatile ByteBuffer binary;
+    // solo frames de transferencia: se ejecuta cuando el envío se completa
+    private final Runnable onSent;
+
+    Frame(byte[] utf8, String coalesceKey, String kind) {
+        this.utf8 = ByteBuffer.wrap(utf8).asReadOnlyBuffer();
+        this.text = new String(utf8, StandardCharsets.UTF_8);
+        this.coalesceKey = coalesceKey;
+        this.kind = kind;
+        this.onSent = null;
+    }
+
+    private Frame(ByteBuffer data, String kind, Runnable onSent) {
+        this.utf8 = ByteBuffer.allocate(0);
+        this.text = null;
+        this.coalesceKey = null;
+        this.kind = kind;
+        this.binary = data;
+        this.onSent = onSent;
+    }
+
+    /**
+     * Frame binario de una transferencia (p.ej. un trozo de descarga): no tiene versión JSON,
+     * nunca se descarta ni se coalesce, y {@code onSent} se llama al completarse su envío.
+     */
+    static Frame bulk(ByteBuffer data, String kind, Runnable onSent) {
+        return new Frame(data, kind, onSent);
+    }
+
+    /** true para los frames de {@link #bulk}. */
+    boolean isBulk() {
+        return text == null;
+    }
+
+    Runnable onSent() {
+        return onSent;
+    }
+
+    /** Texto JSON del frame (la misma instancia de String para todos los destinatarios); null en los bulk. */
+    String text() {
+        return text;
+    }
+
+    /** Vista de solo lectura sobre los bytes UTF-8; cada llamada tiene su propia posición. */
+    ByteBuffer utf8() {
+        return utf8.duplicate();
+    }
+
+    int size() {
+        return utf8.capacity();
+    }
+
+    /** Clave para la política COALESCE de las colas de salida; null si el frame no es coalescible. */
+    String coalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * Versión binaria (subprotocolo chat.bin.v1), o null si el frame solo existe en JSON.
+     * Se codifica una vez y se comparte entre todas las sesiones binarias.
+     */
+    ByteBuffer binary() {
+        ByteBuffer b = binary;
+        if (b == null) {
+            if (binaryEncoder == null) return null;
+            // carrera benigna: dos hilos pueden codificar a la vez, el resultado es idéntico
+            b = binaryEncoder.get().asReadOnlyBuffer();
+            binary = b;
+        }
+        return b.duplicate();
+    }
+
+    /** Tipo del mensaje para las métricas: el "type", o el "event" en los eventos de sistema. */
+    String kind() {
+        return kind;
+    }
+
+    /** {"type":"chat","seq":...,"room":...,"user":...,"text":...} */
+    static Frame chat(long seq, String room, String user, String text) {
+        Frame f = FrameWriter.begin("chat").field("seq", seq).field("room", room).field("user", user).field("text", text).build();
+        f.binaryEncoder = () -> BinaryFrame.chat(room, seq, user, text);
+        return f;
+    }
+
+    /** {"type":"chat_batch","room":...,"items":[{chat},...]}: varios chats de una sala en un solo frame. */
+    static Frame chatBatch(String room, List<Frame> chats) {
+        return FrameWriter.begin("chat_batch").field("room", room).frames("items", chats).build();
+    }
+
+    /** Inicia un evento {"type":"system","event":...}; el llamador añade campos y hace build(). */
+    static FrameWriter system(String event) {
+        FrameWriter w = FrameWriter.begin("system").field("event", event);
+        w.kind = event;
+        return w;
+    }
+}
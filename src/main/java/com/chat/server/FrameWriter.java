@@ -0,0 +1,216 @@
+package com.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codificador JSON en streaming para los esquemas fijos de salida (chat/system).
+ * Escribe directamente UTF-8 en un buffer reutilizado por hilo, sin árbol intermedio
+ * (JSONObject/HashMap). Uso: {@code FrameWriter.begin("system").field("event", "x").build()}.
+ * La instancia es del hilo actual y solo es válida hasta el siguiente begin().
+ */
+final class FrameWriter {
+
+    private static final ThreadLocal<FrameWriter> LOCAL = ThreadLocal.withInitial(FrameWriter::new);
+    private static final int MAX_RETAINED = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf = new byte[256];
+    private int pos;
+    // etiqueta del frame para las métricas (ver Frame#kind)
+    String kind;
+
+    private FrameWriter() {
+    }
+
+    static FrameWriter begin(String type) {
+        FrameWriter w = LOCAL.get();
+        w.pos = 0;
+        w.kind = type;
+        w.put((byte) '{');
+        w.name("type");
+        w.string(type);
+        return w;
+    }
+
+    FrameWriter field(String name, String value) {
+        put((byte) ',');
+        name(name);
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    FrameWriter field(String name, long value) {
+        put((byte) ',');
+        name(name);
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    FrameWriter field(String name, double value) {
+        put((byte) ',');
+        name(name);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            ascii("null");
+        } else {
+            ascii(Double.toString(value));
+        }
+        return this;
+    }
+
+    FrameWriter field(String name, boolean value) {
+        put((byte) ',');
+        name(name);
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    /** Escribe una lista de rangos como [[offset,len],...]. */
+    FrameWriter field(String name, List<long[]> ranges) {
+        put((byte) ',');
+        name(name);
+        put((byte) '[');
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) put((byte) ',');
+            long[] r = ranges.get(i);
+            put((byte) '[');
+            for (int j = 0; j < r.length; j++) {
+                if (j > 0) put((byte) ',');
+                ascii(Long.toString(r[j]));
+            }
+            put((byte) ']');
+        }
+        put((byte) ']');
+        return this;
+    }
+
+    /** Escribe un objeto {"clave":n,...} con contadores por nombre. */
+    FrameWriter counts(String name, Map<String, Integer> counts) {
+        put((byte) ',');
+        name(name);
+        put((byte) '{');
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (!first) put((byte) ',');
+            first = false;
+            name(e.getKey());
+            ascii(Integer.toString(e.getValue()));
+        }
+        put((byte) '}');
+        return this;
+    }
+
+    /** Escribe los frames (ya codificados) como un array JSON de objetos, copiando sus bytes. */
+    FrameWriter frames(String name, List<Frame> frames) {
+        put((byte) ',');
+        name(name);
+        put((byte) '[');
+        for (int i = 0; i < frames.size(); i++) {
+            if (i > 0) put((byte) ',');
+            ByteBuffer b = frames.get(i).utf8();
+            int n = b.remaining();
+            ensure(n);
+            b.get(buf, pos, n);
+            pos += n;
+        }
+        put((byte) ']');
+        return this;
+    }
+
+    Frame build() {
+        return build(null);
+    }
+
+    Frame build(String coalesceKey) {
+        put((byte) '}');
+        Frame f = new Frame(Arrays.copyOf(buf, pos), coalesceKey, kind);
+        if (buf.length > MAX_RETAINED) {
+            // no retener en el hilo el buffer de un mensaje excepcionalmente grande
+            buf = new byte[256];
+        }
+        return f;
+    }
+
+    private void name(String name) {
+        string(name);
+        put((byte) ':');
+    }
+
+    private void string(String s) {
+        ensure(s.length() * 3 + 2);
+        buf[pos++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensure(2 + (s.length() - i) * 3);
+                    buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x20) {
+                    escapeControl(c, s.length() - i);
+                } else {
+                    buf[pos++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // surrogate suelto: no es UTF-8 válido
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buf[pos++] = '"';
+    }
+
+    private void escapeControl(char c, int remaining) {
+        ensure(6 + remaining * 3);
+        buf[pos++] = '\\';
+        switch (c) {
+            case '\n': buf[pos++] = 'n'; break;
+            case '\r': buf[pos++] = 'r'; break;
+            case '\t': buf[pos++] = 't'; break;
+            case '\b': buf[pos++] = 'b'; break;
+            case '\f': buf[pos++] = 'f'; break;
+            default:
+                buf[pos++] = 'u';
+                buf[pos++] = '0';
+                buf[pos++] = '0';
+                buf[pos++] = HEX[(c >> 4) & 0xF];
+                buf[pos++] = HEX[c & 0xF];
+        }
+    }
+
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buf[pos++] = b;
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+}
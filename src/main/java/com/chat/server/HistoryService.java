@@ -0,0 +1,109 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Historial de chat: números de secuencia asignados por el servidor, ring buffer por sala
+ * para replay inmediato y {@link MessageLog} en disco para "mensajes desde seq N".
+ * Con -Dchat.log.enabled=false solo queda el historial en memoria.
+ */
+final class HistoryService {
+
+    private final MessageLog log;
+    // secuencia cuando no hay log en disco (deshabilitado o no se pudo abrir)
+    private final AtomicLong seq = new AtomicLong();
+
+    HistoryService(MessageLog log) {
+        this.log = log;
+    }
+
+    static HistoryService fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) {
+            return new HistoryService(null);
+        }
+        try {
+            return new HistoryService(MessageLog.fromSystemProperties());
+        } catch (IOException e) {
+            Log.error("No se pudo abrir el log de mensajes, solo historial en memoria: %s", e.getMessage());
+            return new HistoryService(null);
+        }
+    }
+
+    long lastSeq() {
+        return log != null ? log.lastSeq() : seq.get();
+    }
+
+    /**
+     * Asigna seq al mensaje, lo guarda en el log y en el ring buffer de la sala y devuelve el frame a difundir.
+     * El llamante serializa por sala (ver ChatEndpoint#chat) para que el ring y la entrega sigan el orden de seq.
+     */
+    Frame record(RoomRegistry.Room room, String user, String text) {
+        long now = System.currentTimeMillis();
+        long[] asignado = new long[1];
+        Frame frame;
+        if (log != null) {
+            frame = log.append(room.name, n -> {
+                asignado[0] = n;
+                return Frame.chat(n, room.name, user, text);
+            });
+        } else {
+            asignado[0] = seq.incrementAndGet();
+            frame = Frame.chat(asignado[0], room.name, user, text);
+        }
+        room.history.add(new ChatHistory.Entry(asignado[0], now, user, text, frame));
+        return frame;
+    }
+
+    /**
+     * seq desde el que {@link #since} devuelve los últimos limit mensajes de la sala (el replay al entrar).
+     * Sale del ring buffer o del índice de salas del log, sin leer registros.
+     */
+    long tailSince(RoomRegistry.Room room, int limit) {
+        List<ChatHistory.Entry> recientes = room.history.snapshot();
+        if (recientes.size() > limit) return recientes.get(recientes.size() - limit - 1).seq;
+        if (log == null) return 0;
+        long before = recientes.isEmpty() ? Long.MAX_VALUE : recientes.get(0).seq;
+        return log.tailSince(room.name, limit - recientes.size(), before);
+    }
+
+    /**
+     * Frames de la sala con seq > since (como mucho limit), del ring buffer o, si no alcanza,
+     * lo anterior al ring del log y el resto del ring.
+     */
+    List<Frame> since(RoomRegistry.Room room, long since, int limit) {
+        List<ChatHistory.Entry> recientes = room.history.since(since);
+        List<Frame> out = new ArrayList<>();
+        if (recientes != null || log == null) {
+            if (recientes == null) recientes = room.history.snapshot();
+            for (ChatHistory.Entry e : recientes) {
+                if (out.size() >= limit) break;
+                out.add(e.frame);
+            }
+            return out;
+        }
+        recientes = room.history.snapshot();
+        long before = recientes.isEmpty() ? Long.MAX_VALUE : recientes.get(0).seq;
+        for (MessageLog.Record r : log.readSince(since, room.name, limit, before)) {
+            out.add(new Frame(r.frame, null, "chat"));
+        }
+        for (ChatHistory.Entry e : recientes) {
+            if (out.size() >= limit) break;
+            if (e.seq > since) out.add(e.frame);
+        }
+        return out;
+    }
+
+    void close() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.warn("Error cerrando el log de mensajes: %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Log append-only de los eventos de chat, en segmentos en disco.
+ * - Cada segmento es {@code <primerSeq>.log} de -Dchat.log.segment.bytes; cuando no cabe un registro se abre otro
+ * - Registro: [int len][long seq][short roomLen][room UTF-8][frame UTF-8]; len = 0 marca el final
+ * - Índice disperso (seq -> posición) cada -Dchat.log.index.interval registros, persistido en {@code .idx}
+ *   al cerrar un segmento, para leer "mensajes desde seq N" sin recorrer todo el log
+ * - Índice por sala con las posiciones de sus últimos -Dchat.log.room.tail registros (en memoria, persistido
+ *   en {@code rooms.idx} al apagar): el replay de una sala no recorre el log, y una sala sin registros no lo toca
+ * - Solo el segmento activo está mapeado en memoria; los cerrados se leen del fichero
+ * - Retención: se conservan como mucho -Dchat.log.retention.segments segmentos y, con -Dchat.log.retention.h,
+ *   se borran los cerrados sin escrituras desde hace más de esas horas (se aplica al arrancar y al abrir cada segmento)
+ * - Los números de secuencia son monotónicos y se recuperan del log al arrancar
+ */
+final class MessageLog {
+
+    private static final int HEADER = 4 + 8 + 2;
+    private static final String ROOMS_INDEX = "rooms.idx";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final int roomTail;
+    private final int retentionSegments;
+    private final long retentionMillis;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // sala -> posiciones de sus últimos registros; solo salas con registros en el log
+    private final Map<String, RoomTail> rooms = new HashMap<>();
+    private Segment active;
+    private long lastSeq;
+
+    private static final class Segment {
+        final long baseSeq;
+        final Path path;
+        final FileChannel channel;
+        // solo el segmento activo; al cerrarlo se suelta el mapa (lo libera el GC) y se lee del fichero
+        volatile MappedByteBuffer map;
+        // índice disperso: seqs[i] empieza en positions[i]
+        long[] seqs = new long[16];
+        int[] positions = new int[16];
+        int indexSize = 0;
+        int records = 0;
+        // fin de los datos visibles para lectores (se publica tras escribir el registro)
+        volatile int end = 0;
+        volatile long lastSeq;
+        long lastWrite;
+
+        Segment(long baseSeq, Path path, FileChannel channel, MappedByteBuffer map) {
+            this.baseSeq = baseSeq;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+            this.lastSeq = baseSeq - 1;
+        }
+
+        void index(long seq, int position) {
+            if (indexSize == seqs.length) {
+                seqs = Arrays.copyOf(seqs, indexSize * 2);
+                positions = Arrays.copyOf(positions, indexSize * 2);
+            }
+            seqs[indexSize] = seq;
+            positions[indexSize] = position;
+            indexSize++;
+        }
+
+        /** Posición desde la que empezar a buscar seq (la entrada del índice anterior o igual). */
+        synchronized int floorPosition(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, indexSize, seq);
+            if (i >= 0) return positions[i];
+            int ins = -i - 1;
+            return ins == 0 ? 0 : positions[ins - 1];
+        }
+
+        /** Lee dst.remaining() bytes desde pos (del mapa si es el activo, si no del fichero) y deja dst listo para leer. */
+        ByteBuffer read(int pos, ByteBuffer dst) throws IOException {
+            MappedByteBuffer m = map;
+            if (m != null) {
+                dst.put(m.duplicate().position(pos).limit(pos + dst.remaining()));
+            } else {
+                for (int p = pos; dst.hasRemaining(); ) {
+                    int n = channel.read(dst, p);
+                    if (n < 0) throw new EOFException(path + " @" + pos);
+                    p += n;
+                }
+            }
+            return dst.flip();
+        }
+
+        Path indexPath() {
+            return path.resolveSibling(path.getFileName().toString().replace(".log", ".idx"));
+        }
+    }
+
+    /** Posiciones de los últimos registros de una sala, en orden de seq (ring acotado). */
+    private static final class RoomTail {
+        long[] seqs;
+        int[] positions;
+        int head = 0;
+        int size = 0;
+        // todos los registros de la sala con seq > coveredFrom están en el ring
+        long coveredFrom;
+
+        RoomTail(int capacity) {
+            seqs = new long[Math.min(4, capacity)];
+            positions = new int[seqs.length];
+        }
+
+        void add(long seq, int position, int capacity) {
+            if (size == seqs.length && size < capacity) {
+                // crece hasta capacity: la mayoría de salas tienen pocos mensajes
+                int n = Math.min(capacity, size * 2);
+                long[] s = new long[n];
+                int[] p = new int[n];
+                for (int i = 0; i < size; i++) {
+                    s[i] = seq(i);
+                    p[i] = position(i);
+                }
+                seqs = s;
+                positions = p;
+                head = 0;
+            }
+            if (size < seqs.length) {
+                int i = (head + size) % seqs.length;
+                seqs[i] = seq;
+                positions[i] = position;
+                size++;
+            } else {
+                coveredFrom = seqs[head];
+                seqs[head] = seq;
+                positions[head] = position;
+                head = (head + 1) % seqs.length;
+            }
+        }
+
+        long seq(int i) {
+            return seqs[(head + i) % seqs.length];
+        }
+
+        int position(int i) {
+            return positions[(head + i) % seqs.length];
+        }
+
+        /** Descarta las entradas de segmentos ya borrados (seq < firstSeq). */
+        void dropBefore(long firstSeq) {
+            while (size > 0 && seqs[head] < firstSeq) {
+                head = (head + 1) % seqs.length;
+                size--;
+            }
+        }
+    }
+
+    /** Un registro leído del log. */
+    static final class Record {
+        final long seq;
+        final String room;
+        final byte[] frame;
+
+        Record(long seq, String room, byte[] frame) {
+            this.seq = seq;
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+
+    MessageLog(Path dir, int segmentBytes, int indexInterval, int roomTail, int retentionSegments, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = Math.max(1, indexInterval);
+        this.roomTail = Math.max(1, roomTail);
+        this.retentionSegments = retentionSegments;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    static MessageLog fromSystemProperties() throws IOException {
+        Path dir = Path.of(System.getProperty("chat.log.dir",
+                Path.of(System.getProperty("java.io.tmpdir"), "chat-log").toString()));
+        return new MessageLog(dir,
+                Integer.getInteger("chat.log.segment.bytes", 64 * 1024 * 1024),
+                Integer.getInteger("chat.log.index.interval", 64),
+                Integer.getInteger("chat.log.room.tail", Math.max(64, Integer.getInteger("chat.history.replay", 50))),
+                Integer.getInteger("chat.log.retention.segments", 16),
+                (long) (Double.parseDouble(System.getProperty("chat.log.retention.h", "0")) * 3_600_000));
+    }
+
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Asigna el siguiente número de secuencia, construye el frame con él y lo añade al log.
+     * La secuencia y el orden del log coinciden porque ambos ocurren bajo el mismo lock.
+     * Si el registro no se puede escribir, la secuencia se consume igual y el frame se devuelve
+     * (el mensaje se difunde, pero no quedará en el log).
+     */
+    synchronized Frame append(String room, FrameFactory factory) {
+        long seq = lastSeq + 1;
+        lastSeq = seq;
+        Frame frame = factory.build(seq);
+        try {
+            write(seq, room, frame);
+        } catch (IOException e) {
+            Log.error("Error escribiendo seq=%d en el log de mensajes: %s", seq, e.getMessage());
+        }
+        return frame;
+    }
+
+    private void write(long seq, String room, Frame frame) throws IOException {
+        ByteBuffer payload = frame.utf8();
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int len = HEADER + roomBytes.length + payload.remaining();
+        if (len + 4 > segmentBytes) {
+            throw new IOException("mensaje demasiado grande (" + len + " bytes)");
+        }
+        if (active == null || active.end + len + 4 > segmentBytes) {
+            roll(seq);
+        }
+        Segment s = active;
+        int pos = s.end;
+        MappedByteBuffer m = s.map;
+        m.putLong(pos + 4, seq);
+        m.putShort(pos + 12, (short) roomBytes.length);
+        m.put(pos + HEADER, roomBytes);
+        m.put(pos + HEADER + roomBytes.length, payload, payload.position(), payload.remaining());
+        // la longitud se escribe al final: un registro con len != 0 está completo
+        m.putInt(pos, len);
+        if (s.records % indexInterval == 0) {
+            synchronized (s) {
+                s.index(seq, pos);
+            }
+        }
+        s.records++;
+        s.lastSeq = seq;
+        s.lastWrite = System.currentTimeMillis();
+        s.end = pos + len;
+        rooms.computeIfAbsent(room, k -> new RoomTail(roomTail)).add(seq, pos, roomTail);
+    }
+
+    /** Crea un frame con el número de secuencia asignado por el log. */
+    interface FrameFactory {
+        Frame build(long seq);
+    }
+
+    /**
+     * Registros con since < seq < before (de la sala indicada, o de todas si room es null), como mucho limit.
+     * Si el índice de la sala cubre since se leen solo esos registros; una sala sin registros no toca el disco.
+     * No bloquea a los escritores: lee hasta la última posición publicada de cada segmento.
+     */
+    List<Record> readSince(long since, String room, int limit, long before) {
+        List<Record> out = new ArrayList<>();
+        List<Segment> candidatos;
+        List<Segment> enSegmento = new ArrayList<>();
+        List<Integer> posiciones = new ArrayList<>();
+        synchronized (this) {
+            RoomTail t = room != null ? rooms.get(room) : null;
+            if (room != null && t == null) return out;
+            if (t != null && since >= t.coveredFrom) {
+                candidatos = null;
+                for (int i = 0; i < t.size && posiciones.size() < limit; i++) {
+                    long seq = t.seq(i);
+                    if (seq >= before) break;
+                    if (seq <= since) continue;
+                    Map.Entry<Long, Segment> e = segments.floorEntry(seq);
+                    if (e == null) continue;
+                    enSegmento.add(e.getValue());
+                    posiciones.add(t.position(i));
+                }
+            } else {
+                Map.Entry<Long, Segment> first = segments.floorEntry(since + 1);
+                Long from = first != null ? first.getKey() : (segments.isEmpty() ? null : segments.firstKey());
+                if (from == null) return out;
+                candidatos = new ArrayList<>(segments.tailMap(from, true).values());
+            }
+        }
+        if (candidatos == null) {
+            for (int i = 0; i < posiciones.size(); i++) {
+                Segment s = enSegmento.get(i);
+                try {
+                    out.add(readAt(s, posiciones.get(i)));
+                } catch (IOException e) {
+                    // el segmento se ha borrado por la retención mientras tanto
+                    Log.warn("No se pudo leer %s: %s", s.path, e);
+                }
+            }
+            return out;
+        }
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        for (Segment s : candidatos) {
+            int end = s.end;
+            int pos = s.floorPosition(since + 1);
+            try {
+                while (pos < end && out.size() < limit) {
+                    s.read(pos, h.clear());
+                    int len = h.getInt(0);
+                    long seq = h.getLong(4);
+                    if (seq >= before) return out;
+                    if (seq > since) {
+                        int roomLen = h.getShort(12);
+                        String r = new String(s.read(pos + HEADER, ByteBuffer.allocate(roomLen)).array(), StandardCharsets.UTF_8);
+                        if (room == null || room.equals(r)) {
+                            byte[] frame = s.read(pos + HEADER + roomLen, ByteBuffer.allocate(len - HEADER - roomLen)).array();
+                            out.add(new Record(seq, r, frame));
+                        }
+                    }
+                    pos += len;
+                }
+            } catch (IOException e) {
+                Log.warn("No se pudo leer %s: %s", s.path, e);
+            }
+            if (out.size() >= limit) break;
+        }
+        return out;
+    }
+
+    /**
+     * seq desde el que {@link #readSince} devuelve los últimos n registros de la sala anteriores a before,
+     * sacado del índice de la sala (sin tocar el disco); 0 si la sala no tiene registros en el log.
+     * Como mucho llega a los -Dchat.log.room.tail registros del índice.
+     */
+    synchronized long tailSince(String room, int n, long before) {
+        RoomTail t = rooms.get(room);
+        if (t == null) return 0;
+        int k = 0;
+        while (k < t.size && t.seq(k) < before) k++;
+        return k > n ? t.seq(k - n - 1) : t.coveredFrom;
+    }
+
+    private static Record readAt(Segment s, int pos) throws IOException {
+        ByteBuffer h = s.read(pos, ByteBuffer.allocate(HEADER));
+        int len = h.getInt(0);
+        int roomLen = h.getShort(12);
+        byte[] body = s.read(pos + HEADER, ByteBuffer.allocate(len - HEADER)).array();
+        return new Record(h.getLong(4), new String(body, 0, roomLen, StandardCharsets.UTF_8),
+                Arrays.copyOfRange(body, roomLen, body.length));
+    }
+
+    /** Fuerza a disco el segmento activo y guarda su índice y el de las salas (al apagar el servidor). */
+    synchronized void close() throws IOException {
+        if (active != null) {
+            active.map.force();
+            saveIndex(active);
+        }
+        saveRooms();
+        for (Segment s : segments.values()) {
+            s.channel.close();
+        }
+    }
+
+    private void roll(long baseSeq) throws IOException {
+        if (active != null) {
+            active.map.force();
+            saveIndex(active);
+            active.map = null;
+        }
+        Path path = dir.resolve(String.format("%020d.log", baseSeq));
+        active = openSegment(baseSeq, path, true);
+        segments.put(baseSeq, active);
+        retain();
+    }
+
+    private Segment openSegment(long baseSeq, Path path, boolean mapped) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map = mapped ? ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes) : null;
+        Segment s = new Segment(baseSeq, path, ch, map);
+        s.lastWrite = Files.getLastModifiedTime(path).toMillis();
+        return s;
+    }
+
+    /** Borra los segmentos cerrados que sobran según la retención (nunca el activo). */
+    private void retain() {
+        long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        int borrados = 0;
+        while (segments.size() > 1) {
+            Segment s = segments.firstEntry().getValue();
+            boolean sobra = retentionSegments > 0 && segments.size() > retentionSegments;
+            if (s == active || (!sobra && s.lastWrite >= cutoff)) break;
+            segments.pollFirstEntry();
+            s.map = null;
+            try {
+                s.channel.close();
+                Files.deleteIfExists(s.path);
+                Files.deleteIfExists(s.indexPath());
+            } catch (IOException e) {
+                Log.warn("No se pudo borrar el segmento %s: %s", s.path, e.getMessage());
+            }
+            borrados++;
+        }
+        if (borrados > 0) {
+            long first = segments.firstKey();
+            rooms.values().removeIf(t -> {
+                t.dropBefore(first);
+                return t.size == 0;
+            });
+            Log.info("Retención del log de mensajes: %d segmentos borrados, el más antiguo empieza en seq=%d", borrados, first);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path p : ds) files.add(p);
+        }
+        files.sort(null);
+        lastSeq = 0;
+        for (int i = 0; i < files.size(); i++) {
+            Path p = files.get(i);
+            long base = Long.parseLong(p.getFileName().toString().replace(".log", ""));
+            boolean last = i == files.size() - 1;
+            Segment s = openSegment(base, p, last);
+            if (last || !loadIndex(s)) {
+                scan(s);
+            }
+            segments.put(base, s);
+            if (s.lastSeq > lastSeq) lastSeq = s.lastSeq;
+            if (last) active = s;
+        }
+        if (!segments.isEmpty()) {
+            retain();
+            // índice de salas: el de rooms.idx más lo escrito después; si no hay, se reconstruye entero
+            long desde = loadRooms();
+            indexRooms(desde);
+            Log.info("Log de mensajes recuperado: %d segmentos, último seq=%d, %d salas", segments.size(), lastSeq, rooms.size());
+        }
+    }
+
+    /** Recorre el segmento reconstruyendo índice, fin de datos y último seq. */
+    private void scan(Segment s) {
+        s.indexSize = 0;
+        s.records = 0;
+        int pos = 0;
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        try {
+            while (pos + HEADER <= segmentBytes) {
+                s.read(pos, h.clear());
+                int len = h.getInt(0);
+                if (len < HEADER || pos + len > segmentBytes) break;
+                long seq = h.getLong(4);
+                if (s.records % indexInterval == 0) s.index(seq, pos);
+                s.records++;
+                s.lastSeq = seq;
+                pos += len;
+            }
+        } catch (IOException e) {
+            // fichero más corto que el segmento: los datos acaban ahí
+            Log.debug("Fin de %s en %d: %s", s.path, pos, e);
+        }
+        s.end = pos;
+    }
+
+    /** Añade al índice de salas los registros con seq > since. */
+    private void indexRooms(long since) {
+        Map.Entry<Long, Segment> first = segments.floorEntry(since + 1);
+        long from = first != null ? first.getKey() : segments.firstKey();
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        for (Segment s : segments.tailMap(from, true).values()) {
+            int pos = s.floorPosition(since + 1);
+            try {
+                while (pos < s.end) {
+                    s.read(pos, h.clear());
+                    int len = h.getInt(0);
+                    long seq = h.getLong(4);
+                    if (seq > since) {
+                        String room = new String(s.read(pos + HEADER, ByteBuffer.allocate(h.getShort(12))).array(), StandardCharsets.UTF_8);
+                        rooms.computeIfAbsent(room, k -> new RoomTail(roomTail)).add(seq, pos, roomTail);
+                    }
+                    pos += len;
+                }
+            } catch (IOException e) {
+                Log.warn("No se pudo indexar %s: %s", s.path, e.getMessage());
+            }
+        }
+    }
+
+    private void saveIndex(Segment s) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(s.indexPath()))) {
+            out.writeInt(s.end);
+            out.writeInt(s.records);
+            out.writeLong(s.lastSeq);
+            out.writeInt(s.indexSize);
+            for (int i = 0; i < s.indexSize; i++) {
+                out.writeLong(s.seqs[i]);
+                out.writeInt(s.positions[i]);
+            }
+        }
+    }
+
+    private boolean loadIndex(Segment s) {
+        Path idx = s.indexPath();
+        if (!Files.exists(idx)) return false;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(idx))) {
+            s.end = in.readInt();
+            s.records = in.readInt();
+            s.lastSeq = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                s.index(in.readLong(), in.readInt());
+            }
+            return true;
+        } catch (IOException e) {
+            Log.warn("Índice ilegible, se reconstruye: %s (%s)", idx, e.getMessage());
+            return false;
+        }
+    }
+
+    private void saveRooms() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(dir.resolve(ROOMS_INDEX)))) {
+            out.writeLong(lastSeq);
+            out.writeInt(rooms.size());
+            for (Map.Entry<String, RoomTail> e : rooms.entrySet()) {
+                RoomTail t = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(t.coveredFrom);
+                out.writeInt(t.size);
+                for (int i = 0; i < t.size; i++) {
+                    out.writeLong(t.seq(i));
+                    out.writeInt(t.position(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Carga rooms.idx y devuelve el último seq que cubre (lo posterior hay que indexarlo);
+     * 0 si no hay o no corresponde a este log (se indexa todo).
+     */
+    private long loadRooms() {
+        Path idx = dir.resolve(ROOMS_INDEX);
+        if (!Files.exists(idx)) return 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(idx))) {
+            long hasta = in.readLong();
+            if (hasta > lastSeq) return 0;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                RoomTail t = new RoomTail(roomTail);
+                String room = in.readUTF();
+                long coveredFrom = in.readLong();
+                int size = in.readInt();
+                for (int j = 0; j < size; j++) {
+                    t.add(in.readLong(), in.readInt(), roomTail);
+                }
+                t.coveredFrom = Math.max(t.coveredFrom, coveredFrom);
+                t.dropBefore(segments.firstKey());
+                if (t.size > 0) rooms.put(room, t);
+            }
+            return hasta;
+        } catch (IOException e) {
+            Log.warn("Índice de salas ilegible, se reconstruye: %s (%s)", idx, e.getMessage());
+            rooms.clear();
+            return 0;
+        }
+    }
+}
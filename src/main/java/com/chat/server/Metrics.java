@@ -0,0 +1,164 @@
+package com.chat.server;
+
+import com.chat.common.LatencyHistogram;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Métricas del servidor con coste mínimo en los hilos calientes.
+ * - Contadores {@link LongAdder} (striped: sin contención entre hilos) y histogramas {@link LatencyHistogram} en µs
+ * - Familias con una etiqueta (p.ej. type="chat"): cada valor se resuelve una vez y queda cacheado
+ * - Gauges evaluados solo al exportar
+ * - Exportación en texto Prometheus ({@link #prometheus()}) o JSON ({@link #json()}); ver {@link MetricsHttpServer}
+ */
+final class Metrics {
+
+    static final Metrics GLOBAL = new Metrics();
+
+    private final Map<String, Family<LongAdder>> counters = new ConcurrentHashMap<>();
+    private final Map<String, Family<LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    /** Métrica con una etiqueta opcional; label == null es una métrica simple (un solo valor, clave ""). */
+    static final class Family<T> {
+        final String label;
+        private final Map<String, T> values = new ConcurrentHashMap<>();
+        private final Supplier<T> factory;
+
+        Family(String label, Supplier<T> factory) {
+            this.label = label;
+            this.factory = factory;
+        }
+
+        T get(String labelValue) {
+            T v = values.get(labelValue);
+            return v != null ? v : values.computeIfAbsent(labelValue, k -> factory.get());
+        }
+
+        T get() {
+            return get("");
+        }
+    }
+
+    Family<LongAdder> counterFamily(String name, String label, String description) {
+        help.putIfAbsent(name, description);
+        return counters.computeIfAbsent(name, k -> new Family<>(label, LongAdder::new));
+    }
+
+    LongAdder counter(String name, String description) {
+        return counterFamily(name, null, description).get();
+    }
+
+    Family<LatencyHistogram> histogramFamily(String name, String label, String description) {
+        help.putIfAbsent(name, description);
+        return histograms.computeIfAbsent(name, k -> new Family<>(label, LatencyHistogram::new));
+    }
+
+    LatencyHistogram histogram(String name, String description) {
+        return histogramFamily(name, null, description).get();
+    }
+
+    void gauge(String name, String description, DoubleSupplier value) {
+        help.put(name, description);
+        gauges.put(name, value);
+    }
+
+    /** Formato de exposición de texto de Prometheus; los histogramas se publican como summary en segundos. */
+    String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Family<LongAdder>> e : new TreeMap<>(counters).entrySet()) {
+            header(sb, e.getKey(), "counter");
+            Family<LongAdder> f = e.getValue();
+            for (Map.Entry<String, LongAdder> v : new TreeMap<>(f.values).entrySet()) {
+                sb.append(e.getKey()).append(labels(f.label, v.getKey(), null)).append(' ').append(v.getValue().sum()).append('\n');
+            }
+        }
+        for (Map.Entry<String, DoubleSupplier> e : new TreeMap<>(gauges).entrySet()) {
+            header(sb, e.getKey(), "gauge");
+            sb.append(e.getKey()).append(' ').append(number(e.getValue().getAsDouble())).append('\n');
+        }
+        for (Map.Entry<String, Family<LatencyHistogram>> e : new TreeMap<>(histograms).entrySet()) {
+            header(sb, e.getKey(), "summary");
+            Family<LatencyHistogram> f = e.getValue();
+            for (Map.Entry<String, LatencyHistogram> v : new TreeMap<>(f.values).entrySet()) {
+                LatencyHistogram h = v.getValue();
+                for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                    sb.append(e.getKey()).append(labels(f.label, v.getKey(), number(q))).append(' ')
+                            .append(number(h.percentile(q * 100) / 1e6)).append('\n');
+                }
+                sb.append(e.getKey()).append("_sum").append(labels(f.label, v.getKey(), null)).append(' ')
+                        .append(number(h.sum() / 1e6)).append('\n');
+                sb.append(e.getKey()).append("_count").append(labels(f.label, v.getKey(), null)).append(' ')
+                        .append(h.count()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Las mismas métricas en JSON; latencias en milisegundos. */
+    String json() {
+        JSONObject root = new JSONObject();
+        for (Map.Entry<String, Family<LongAdder>> e : counters.entrySet()) {
+            Family<LongAdder> f = e.getValue();
+            if (f.label == null) {
+                root.put(e.getKey(), f.get().sum());
+            } else {
+                JSONObject byLabel = new JSONObject();
+                f.values.forEach((k, v) -> byLabel.put(k, v.sum()));
+                root.put(e.getKey(), byLabel);
+            }
+        }
+        gauges.forEach((k, v) -> root.put(k, v.getAsDouble()));
+        for (Map.Entry<String, Family<LatencyHistogram>> e : histograms.entrySet()) {
+            Family<LatencyHistogram> f = e.getValue();
+            if (f.label == null) {
+                root.put(e.getKey(), histogramJson(f.get()));
+            } else {
+                JSONObject byLabel = new JSONObject();
+                f.values.forEach((k, v) -> byLabel.put(k, histogramJson(v)));
+                root.put(e.getKey(), byLabel);
+            }
+        }
+        return root.toString();
+    }
+
+    private static JSONObject histogramJson(LatencyHistogram h) {
+        JSONObject o = new JSONObject();
+        o.put("count", h.count());
+        o.put("mean_ms", h.mean() / 1000.0);
+        o.put("p50_ms", h.percentile(50) / 1000.0);
+        o.put("p90_ms", h.percentile(90) / 1000.0);
+        o.put("p99_ms", h.percentile(99) / 1000.0);
+        o.put("p999_ms", h.percentile(99.9) / 1000.0);
+        o.put("max_ms", h.max() / 1000.0);
+        return o;
+    }
+
+    private void header(StringBuilder sb, String name, String type) {
+        String h = help.get(name);
+        if (h != null) sb.append("# HELP ").append(name).append(' ').append(h).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String labels(String label, String value, String quantile) {
+        if (label == null && quantile == null) return "";
+        StringBuilder sb = new StringBuilder("{");
+        if (label != null) sb.append(label).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        if (quantile != null) {
+            if (label != null) sb.append(',');
+            sb.append("quantile=\"").append(quantile).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String number(double d) {
+        return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long) d) : Double.toString(d);
+    }
+}
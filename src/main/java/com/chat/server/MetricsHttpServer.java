@@ -0,0 +1,68 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Endpoint HTTP local de métricas (HttpServer del JDK, un hilo), junto al servidor Tyrus.
+ * - GET /metrics      texto Prometheus
+ * - GET /metrics.json JSON
+ * -Dchat.metrics.port (9100; 0 = desactivado) y -Dchat.metrics.host (localhost).
+ */
+final class MetricsHttpServer {
+
+    private final HttpServer server;
+
+    private MetricsHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /** Arranca el endpoint según las propiedades de sistema; devuelve null si está desactivado o no se pudo abrir. */
+    static MetricsHttpServer startFromSystemProperties(Metrics metrics) {
+        int port = Integer.getInteger("chat.metrics.port", 9100);
+        if (port <= 0) return null;
+        String host = System.getProperty("chat.metrics.host", "localhost");
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+            http.createContext("/metrics", ex -> responder(ex, metrics.prometheus(), "text/plain; version=0.0.4; charset=utf-8"));
+            http.createContext("/metrics.json", ex -> responder(ex, metrics.json(), "application/json; charset=utf-8"));
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "chat-metrics-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            Log.info("Métricas en http://%s:%d/metrics (y /metrics.json)", host, port);
+            return new MetricsHttpServer(http);
+        } catch (IOException e) {
+            Log.warn("No se pudo abrir el endpoint de métricas en %s:%d: %s", host, port, e.getMessage());
+            return null;
+        }
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private static void responder(HttpExchange ex, String body, String contentType) throws IOException {
+        try (ex) {
+            if (!"GET".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+}
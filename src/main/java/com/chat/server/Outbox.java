@@ -0,0 +1,357 @@
+package com.chat.server;
+
+import com.chat.common.BinaryFrame;
+import com.chat.common.LatencyHistogram;
+import com.chat.common.Log;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cola de salida acotada de una sesión (ring buffer).
+ * Solo hay un envío async en vuelo por sesión: el SendHandler del envío actual
+ * saca el siguiente mensaje de la cola. El lock es por sesión, nunca global.
+ * Además hay un hueco para un frame de transferencia ({@link Frame#bulk}): no se descarta nunca,
+ * sale cuando la cola está vacía (el chat no espera detrás de una descarga) y avisa al completarse,
+ * así quien transfiere produce el siguiente trozo solo cuando el anterior ya salió.
+ * <p>
+ * Consumidores lentos: se contabilizan los bytes y mensajes pendientes (encolados + el envío en vuelo,
+ * que se descuenta en el SendHandler). Al pasar la marca alta la sesión entra en modo degradado:
+ * - el progreso de subidas ({@code upload_receiving}) se descarta
+ * - los eventos de presencia y de subidas ajenas no se envían: se resumen
+ * - los frames coalescibles sustituyen al encolado con la misma clave aunque la cola no esté llena
+ * Al bajar de la marca baja sale del modo degradado y recibe un único {@code delivery_summary}
+ * con lo que se omitió por tipo (incluidos los chats descartados por desbordamiento, para pedir /history).
+ */
+final class Outbox implements SendHandler {
+
+    private static final Metrics.Family<LongAdder> SENT = Metrics.GLOBAL.counterFamily(
+            "chat_messages_out_total", "type", "Mensajes enviados a clientes, por tipo");
+    private static final LongAdder BYTES_OUT = Metrics.GLOBAL.counter(
+            "chat_bytes_out_total", "Bytes (UTF-8) enviados a clientes");
+    private static final LongAdder SEND_FAILURES = Metrics.GLOBAL.counter(
+            "chat_send_failures_total", "Envíos async fallidos (SendHandler o al iniciar el envío)");
+    private static final LongAdder DROPPED = Metrics.GLOBAL.counter(
+            "chat_outbox_dropped_total", "Mensajes descartados o coalescidos por colas de salida llenas");
+    private static final LongAdder DISCONNECTS = Metrics.GLOBAL.counter(
+            "chat_outbox_disconnects_total", "Sesiones cerradas por la política DISCONNECT");
+    private static final LongAdder DEGRADED = Metrics.GLOBAL.counter(
+            "chat_outbox_degraded_total", "Veces que una sesión pasó la marca alta y entró en modo degradado");
+    private static final Metrics.Family<LongAdder> SHED = Metrics.GLOBAL.counterFamily(
+            "chat_outbox_shed_total", "type", "Frames omitidos o coalescidos en modo degradado, por tipo");
+    private static final LatencyHistogram SEND_TIME = Metrics.GLOBAL.histogram(
+            "chat_send_seconds", "Desde que se inicia un envío async hasta que su SendHandler lo completa");
+
+    // modo degradado: se descartan sin más
+    private static final Set<String> SHED_KINDS = Set.of("upload_receiving");
+    // modo degradado: no se envían, solo cuentan en el delivery_summary
+    private static final Set<String> SUMMARIZED_KINDS = Set.of("user_joined", "user_left", "upload_started");
+
+    private final Session session;
+    private final Broadcaster owner;
+    private final Broadcaster.OverflowPolicy policy;
+    // la sesión negoció chat.bin.v1: los frames con versión binaria salen en binario
+    private final boolean binary;
+
+    // ring buffer de frames ya codificados (compartidos con las demás sesiones)
+    private final Frame[] items;
+    private int head = 0;
+    private int size = 0;
+    private boolean sending = false;
+    private long dropped = 0;
+    // frame de transferencia pendiente y frame en vuelo (para avisar a su onSent)
+    private Frame bulk;
+    private Frame current;
+    private long currentStart;
+    // bytes de los frames encolados (los de transferencia no cuentan: ya van de uno en uno)
+    private long queuedBytes;
+    // modo degradado y lo omitido desde que se entró, por tipo
+    private boolean degraded;
+    private Map<String, Integer> omitted;
+
+    Outbox(Session session, int capacity, Broadcaster.OverflowPolicy policy, Broadcaster owner) {
+        this.session = session;
+        this.owner = owner;
+        this.policy = policy;
+        this.items = new Frame[capacity];
+        this.binary = BinaryFrame.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+    }
+
+    Session session() {
+        return session;
+    }
+
+    synchronized int queued() {
+        return size;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    synchronized boolean degraded() {
+        return degraded;
+    }
+
+    /** true si no queda nada encolado ni en vuelo. */
+    synchronized boolean idle() {
+        return size == 0 && !sending && bulk == null;
+    }
+
+    /** Bytes pendientes de salir: encolados más el envío en vuelo. */
+    synchronized long pendingBytes() {
+        return queuedBytes + inFlightBytes();
+    }
+
+    void offer(Frame frame) {
+        if (!session.isOpen()) {
+            owner.unregister(session);
+            return;
+        }
+        Frame next;
+        synchronized (this) {
+            if (degraded && shed(frame)) return;
+            if (size == items.length) {
+                if (policy == Broadcaster.OverflowPolicy.DISCONNECT) {
+                    dropped++;
+                    DROPPED.increment();
+                    next = null;
+                } else if (policy == Broadcaster.OverflowPolicy.COALESCE && replace(frame)) {
+                    dropped++;
+                    DROPPED.increment();
+                    return;
+                } else {
+                    dropOldest();
+                    next = enqueue(frame);
+                    if (next == null) return;
+                }
+            } else {
+                next = enqueue(frame);
+                if (next == null) return;
+            }
+        }
+        if (next == null) {
+            // cola llena con política DISCONNECT: se cierra fuera del lock
+            DISCONNECTS.increment();
+            disconnect("cola de salida llena (" + items.length + ")");
+            return;
+        }
+        send(next);
+    }
+
+    /**
+     * Encola un frame de transferencia. Devuelve false si la sesión está cerrada o ya hay uno
+     * pendiente (cada transferencia espera a su onSent antes de ofrecer el siguiente).
+     */
+    boolean offerBulk(Frame frame) {
+        if (!session.isOpen()) {
+            owner.unregister(session);
+            return false;
+        }
+        synchronized (this) {
+            if (bulk != null) return false;
+            if (sending) {
+                bulk = frame;
+                return true;
+            }
+            sending = true;
+            current = frame;
+        }
+        send(frame);
+        return true;
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+        if (result.getException() != null) {
+            SEND_FAILURES.increment();
+            Log.warn("Error enviando mensaje a cliente (async): %s", result.getException().getMessage());
+            disconnect(null);
+            return;
+        }
+        Runnable sent;
+        Frame next;
+        synchronized (this) {
+            if (current != null) {
+                SEND_TIME.record((System.nanoTime() - currentStart) / 1000);
+                sent = current.onSent();
+            } else {
+                sent = null;
+            }
+            // el envío en vuelo ya no cuenta: current pasa a ser el siguiente
+            current = null;
+            if (degraded && size <= owner.lowMessages && queuedBytes <= owner.lowBytes) recover();
+            if (size == 0 && bulk == null) {
+                sending = false;
+                current = null;
+                next = null;
+            } else {
+                next = take();
+            }
+        }
+        // fuera del lock: el aviso puede ofrecer el siguiente trozo de la transferencia
+        if (sent != null) sent.run();
+        if (next != null) send(next);
+    }
+
+    synchronized void clear() {
+        Arrays.fill(items, null);
+        head = 0;
+        size = 0;
+        queuedBytes = 0;
+        bulk = null;
+        current = null;
+        if (degraded) {
+            degraded = false;
+            omitted = null;
+            owner.degradedChanged(-1);
+        }
+    }
+
+    private void send(Frame frame) {
+        try {
+            // el SendHandler (this) encadena el siguiente envío de la cola
+            ByteBuffer bin = binary || frame.isBulk() ? frame.binary() : null;
+            if (bin != null) {
+                BYTES_OUT.add(bin.remaining());
+                session.getAsyncRemote().sendBinary(bin, this);
+            } else {
+                BYTES_OUT.add(frame.size());
+                session.getAsyncRemote().sendText(frame.text(), this);
+            }
+            SENT.get(frame.kind()).increment();
+        } catch (Exception e) {
+            SEND_FAILURES.increment();
+            Log.warn("Error iniciando envío async a cliente: %s", e.getMessage());
+            disconnect(null);
+        }
+    }
+
+    /** Encola el mensaje; devuelve el que hay que enviar ahora, o null si ya hay un envío en vuelo. */
+    private Frame enqueue(Frame frame) {
+        int tail = (head + size) % items.length;
+        items[tail] = frame;
+        size++;
+        queuedBytes += frame.size();
+        if (!degraded && (size >= owner.highMessages || queuedBytes + inFlightBytes() >= owner.highBytes)) degrade();
+        if (sending) return null;
+        sending = true;
+        return take();
+    }
+
+    /** Siguiente frame a enviar: primero la cola, luego el de transferencia. */
+    private Frame take() {
+        Frame m;
+        if (size > 0) {
+            m = poll();
+        } else {
+            m = bulk;
+            bulk = null;
+        }
+        current = m;
+        currentStart = System.nanoTime();
+        return m;
+    }
+
+    private Frame poll() {
+        Frame m = items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        size--;
+        queuedBytes -= m.size();
+        return m;
+    }
+
+    private void dropOldest() {
+        Frame m = poll();
+        dropped++;
+        DROPPED.increment();
+        if (degraded) omit(m.kind());
+    }
+
+    private boolean replace(Frame frame) {
+        String key = frame.coalesceKey();
+        if (key == null) return false;
+        for (int i = 0; i < size; i++) {
+            int idx = (head + i) % items.length;
+            if (key.equals(items[idx].coalesceKey())) {
+                queuedBytes += frame.size() - items[idx].size();
+                items[idx] = frame;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long inFlightBytes() {
+        return current != null && !current.isBulk() ? current.size() : 0;
+    }
+
+    /** Modo degradado: true si el frame no hay que encolarlo (omitido o coalescido con uno encolado). */
+    private boolean shed(Frame frame) {
+        String kind = frame.kind();
+        if (SHED_KINDS.contains(kind) || SUMMARIZED_KINDS.contains(kind)) {
+            omit(kind);
+            return true;
+        }
+        if (replace(frame)) {
+            SHED.get(kind).increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void omit(String kind) {
+        omitted.merge(kind, 1, Integer::sum);
+        SHED.get(kind).increment();
+    }
+
+    private void degrade() {
+        degraded = true;
+        omitted = new TreeMap<>();
+        DEGRADED.increment();
+        owner.degradedChanged(1);
+        Log.info("Sesión %s lenta (%d mensajes, %d bytes pendientes): modo degradado",
+                session.getId(), size, queuedBytes + inFlightBytes());
+    }
+
+    /** Sale del modo degradado y encola el resumen de lo omitido (si hubo algo). */
+    private void recover() {
+        degraded = false;
+        owner.degradedChanged(-1);
+        Map<String, Integer> o = omitted;
+        omitted = null;
+        Log.debug("Sesión %s recuperada (%s omitidos)", session.getId(), o);
+        if (o.isEmpty()) return;
+        int total = 0;
+        for (int n : o.values()) total += n;
+        Frame summary = Frame.system("delivery_summary")
+                .field("omitted", total)
+                .counts("byType", o)
+                .build();
+        if (size == items.length) dropOldest();
+        int tail = (head + size) % items.length;
+        items[tail] = summary;
+        size++;
+        queuedBytes += summary.size();
+    }
+
+    private void disconnect(String motivo) {
+        owner.unregister(session);
+        if (motivo != null) {
+            Log.warn("Desconectando sesión %s: %s", session.getId(), motivo);
+        }
+        try {
+            session.close();
+        } catch (Exception ex) {
+            // ignore
+        }
+    }
+}
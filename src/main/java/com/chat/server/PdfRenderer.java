@@ -0,0 +1,121 @@
+package com.chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generador mínimo de PDF (1.4) de solo texto: páginas A4 con Helvetica,
+ * un título y líneas ajustadas al ancho. Sin dependencias externas.
+ * Los caracteres fuera de Latin-1 se sustituyen por '?'.
+ */
+final class PdfRenderer {
+
+    private static final int LINES_PER_PAGE = 54;
+    private static final int WRAP_COLUMNS = 95;
+
+    private PdfRenderer() {
+    }
+
+    static byte[] render(String title, List<String> lines) {
+        List<String> wrapped = new ArrayList<>();
+        for (String l : lines) wrap(l, wrapped);
+        if (wrapped.isEmpty()) wrapped.add("(sin mensajes)");
+
+        List<List<String>> pages = new ArrayList<>();
+        for (int i = 0; i < wrapped.size(); i += LINES_PER_PAGE) {
+            pages.add(wrapped.subList(i, Math.min(wrapped.size(), i + LINES_PER_PAGE)));
+        }
+
+        // objetos: 1 catalog, 2 pages, 3 font, luego (page, contents) por página
+        int nObjs = 3 + pages.size() * 2;
+        long[] offsets = new long[nObjs + 1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096 + wrapped.size() * 64);
+        ascii(out, "%PDF-1.4\n%âãÏÓ\n");
+
+        offsets[1] = out.size();
+        ascii(out, "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+        StringBuilder kids = new StringBuilder();
+        for (int p = 0; p < pages.size(); p++) {
+            kids.append(4 + p * 2).append(" 0 R ");
+        }
+        offsets[2] = out.size();
+        ascii(out, "2 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + pages.size() + " >>\nendobj\n");
+
+        offsets[3] = out.size();
+        ascii(out, "3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>\nendobj\n");
+
+        for (int p = 0; p < pages.size(); p++) {
+            int pageObj = 4 + p * 2;
+            int contentObj = pageObj + 1;
+            byte[] content = pageContent(title, p + 1, pages.size(), pages.get(p));
+
+            offsets[pageObj] = out.size();
+            ascii(out, pageObj + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] "
+                    + "/Resources << /Font << /F1 3 0 R >> >> /Contents " + contentObj + " 0 R >>\nendobj\n");
+
+            offsets[contentObj] = out.size();
+            ascii(out, contentObj + " 0 obj\n<< /Length " + content.length + " >>\nstream\n");
+            out.write(content, 0, content.length);
+            ascii(out, "\nendstream\nendobj\n");
+        }
+
+        long xref = out.size();
+        StringBuilder sb = new StringBuilder();
+        sb.append("xref\n0 ").append(nObjs + 1).append("\n0000000000 65535 f \n");
+        for (int i = 1; i <= nObjs; i++) {
+            sb.append(String.format("%010d 00000 n \n", offsets[i]));
+        }
+        sb.append("trailer\n<< /Size ").append(nObjs + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                .append(xref).append("\n%%EOF\n");
+        ascii(out, sb.toString());
+        return out.toByteArray();
+    }
+
+    private static byte[] pageContent(String title, int page, int pages, List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BT\n/F1 16 Tf\n50 800 Td\n(").append(escape(title)).append(") Tj\n");
+        sb.append("/F1 10 Tf\n0 -24 Td\n14 TL\n");
+        for (String l : lines) {
+            sb.append('(').append(escape(l)).append(") Tj T*\n");
+        }
+        sb.append("ET\n");
+        sb.append("BT\n/F1 8 Tf\n500 30 Td\n(").append(page).append(" / ").append(pages).append(") Tj\nET");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void wrap(String line, List<String> out) {
+        String l = line.replace('\t', ' ');
+        for (String part : l.split("\r?\n", -1)) {
+            while (part.length() > WRAP_COLUMNS) {
+                int cut = part.lastIndexOf(' ', WRAP_COLUMNS);
+                if (cut <= 0) cut = WRAP_COLUMNS;
+                out.add(part.substring(0, cut));
+                part = part.substring(cut).stripLeading();
+            }
+            out.add(part);
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '(' || c == ')' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0xFF) {
+                sb.append('?');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(b, 0, b.length);
+    }
+}
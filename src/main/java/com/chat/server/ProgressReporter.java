@@ -0,0 +1,130 @@
+package com.chat.server;
+
+import jakarta.websocket.Session;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Eventos de progreso de subida (upload_receiving) coalescidos por fileId.
+ * - Se emite como mucho uno cada -Dchat.progress.interval.ms, salvo que el porcentaje
+ *   avance al menos -Dchat.progress.step.percent desde el último emitido
+ * - Solo se entregan a la sesión que sube y a las que se suscribieron (upload_subscribe) a una subida abierta
+ * - El estado de cada subida vive de su upload_start a su fin (terminada o aparcada): nada más lo crea
+ * - Incluyen throughput (bytes/s) y ETA calculados con received/expectedSize
+ */
+final class ProgressReporter {
+
+    private final Broadcaster broadcaster;
+    private final long intervalNanos;
+    private final int stepPercent;
+    private final Map<String, Progress> porFichero = new ConcurrentHashMap<>();
+    // sesiones suscritas al progreso de todas las subidas ("fileId":"*")
+    private final Set<Session> suscritosGlobales = ConcurrentHashMap.newKeySet();
+
+    private static final class Progress {
+        final long startNanos = System.nanoTime();
+        final long startBytes;
+        final AtomicLong lastEmitNanos = new AtomicLong();
+        volatile int lastPercent = -1;
+        final Set<Session> suscritos = ConcurrentHashMap.newKeySet();
+
+        Progress(long startBytes) {
+            this.startBytes = startBytes;
+        }
+    }
+
+    ProgressReporter(Broadcaster broadcaster, long intervalMs, int stepPercent) {
+        this.broadcaster = broadcaster;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.stepPercent = stepPercent;
+    }
+
+    static ProgressReporter fromSystemProperties(Broadcaster broadcaster) {
+        return new ProgressReporter(broadcaster,
+                Long.getLong("chat.progress.interval.ms", 500),
+                Integer.getInteger("chat.progress.step.percent", 5));
+    }
+
+    /** Registra la subida (o la reanudación) y a la sesión que sube como destinataria. */
+    void start(UploadState st, Session uploader) {
+        Progress p = porFichero.computeIfAbsent(st.fileId, id -> new Progress(st.received()));
+        p.suscritos.add(uploader);
+    }
+
+    /** Suscribe la sesión al progreso de un fileId, o de todas las subidas con "*"; false si ese fileId no está abierto. */
+    boolean subscribe(Session session, String fileId) {
+        if ("*".equals(fileId)) {
+            suscritosGlobales.add(session);
+            return true;
+        }
+        return porFichero.computeIfPresent(fileId, (id, p) -> {
+            p.suscritos.add(session);
+            return p;
+        }) != null;
+    }
+
+    void unsubscribe(Session session, String fileId) {
+        if ("*".equals(fileId)) {
+            suscritosGlobales.remove(session);
+        } else {
+            Progress p = porFichero.get(fileId);
+            if (p != null) p.suscritos.remove(session);
+        }
+    }
+
+    /** Llamado tras cada chunk escrito; emite solo si toca por tiempo o por porcentaje. */
+    void chunkWritten(UploadState st, Session from) {
+        // sin estado: la subida ya terminó o se aparcó (chunk rezagado)
+        Progress p = porFichero.get(st.fileId);
+        if (p == null) return;
+        if (!p.suscritos.contains(from)) p.suscritos.add(from);
+        long now = System.nanoTime();
+        long last = p.lastEmitNanos.get();
+        long received = st.received();
+        int percent = st.expectedSize > 0 ? (int) Math.min(100, received * 100 / st.expectedSize) : -1;
+        boolean porTiempo = now - last >= intervalNanos;
+        boolean porPorcentaje = percent >= 0 && percent - p.lastPercent >= stepPercent;
+        if (!porTiempo && !porPorcentaje) return;
+        // solo un hilo emite por ventana
+        if (!p.lastEmitNanos.compareAndSet(last, now)) return;
+        p.lastPercent = percent;
+        emit(st, p, now, received, percent);
+    }
+
+    /** La subida terminó o se aparcó (error, cierre de su sesión, drenado): se olvida su estado. */
+    void finish(String fileId) {
+        porFichero.remove(fileId);
+    }
+
+    void sessionClosed(Session session) {
+        suscritosGlobales.remove(session);
+        for (Progress p : porFichero.values()) {
+            p.suscritos.remove(session);
+        }
+    }
+
+    private void emit(UploadState st, Progress p, long now, long received, int percent) {
+        double secs = Math.max(1e-3, (now - p.startNanos) / 1e9);
+        long rate = (long) ((received - p.startBytes) / secs);
+        long etaMs = (st.expectedSize > 0 && rate > 0) ? (st.expectedSize - received) * 1000 / rate : -1;
+        Frame frame = Frame.system("upload_receiving")
+                .field("fileId", st.fileId)
+                .field("file", st.name)
+                .field("received", received)
+                .field("size", st.expectedSize)
+                .field("percent", percent)
+                .field("bytesPerSec", rate)
+                .field("etaMs", etaMs)
+                .build("upload_receiving:" + st.fileId);
+        for (Session s : p.suscritos) {
+            broadcaster.send(s, frame);
+        }
+        for (Session s : suscritosGlobales) {
+            if (!p.suscritos.contains(s)) broadcaster.send(s, frame);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.chat.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Bitmap de bloques recibidos de una subida (un bit por bloque de {@code blockSize} bytes).
+ * Se persiste junto al fichero parcial para poder reanudar la subida tras una desconexión
+ * o un reinicio del servidor. Un bloque solo se marca si un chunk lo cubre entero
+ * (o si es el último bloque y el chunk llega hasta el final del fichero).
+ */
+final class ReceivedRanges {
+
+    private final long expectedSize;
+    private final int blockSize;
+    private final BitSet blocks;
+
+    ReceivedRanges(long expectedSize, int blockSize) {
+        this(expectedSize, blockSize, new BitSet());
+    }
+
+    private ReceivedRanges(long expectedSize, int blockSize, BitSet blocks) {
+        if (blockSize < 1) throw new IllegalArgumentException("blockSize debe ser >= 1");
+        this.expectedSize = expectedSize;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    long expectedSize() {
+        return expectedSize;
+    }
+
+    /** Marca como recibidos los bloques cubiertos por [offset, offset+len). */
+    synchronized void mark(long offset, long len) {
+        long end = offset + len;
+        long first = (offset + blockSize - 1) / blockSize;
+        long last = end / blockSize; // exclusivo
+        if (expectedSize > 0 && end >= expectedSize) {
+            last = totalBlocks();
+        }
+        if (last > first) {
+            blocks.set(Math.toIntExact(first), Math.toIntExact(last));
+        }
+    }
+
+    synchronized boolean isComplete() {
+        return expectedSize >= 0 && blocks.nextClearBit(0) >= totalBlocks();
+    }
+
+    /** Bytes cubiertos por bloques marcados (el último bloque cuenta solo hasta expectedSize). */
+    synchronized long receivedBytes() {
+        long bytes = (long) blocks.cardinality() * blockSize;
+        if (expectedSize < 0) return bytes;
+        int total = totalBlocks();
+        if (total > 0 && blocks.get(total - 1)) bytes -= (long) total * blockSize - expectedSize;
+        return bytes;
+    }
+
+    /**
+     * Fin del tramo recibido sin huecos que contiene a {@code offset} (o {@code offset} si su bloque falta):
+     * hasta ahí se puede leer del fichero de forma secuencial.
+     */
+    synchronized long contiguousEnd(long offset) {
+        int b = Math.toIntExact(offset / blockSize);
+        if (!blocks.get(b)) return offset;
+        long end = (long) blocks.nextClearBit(b) * blockSize;
+        return expectedSize >= 0 ? Math.min(end, expectedSize) : end;
+    }
+
+    /** Rangos que faltan como pares {offset, len}, fusionando bloques contiguos. */
+    synchronized List<long[]> missing() {
+        List<long[]> out = new ArrayList<>();
+        if (expectedSize < 0) return out;
+        int total = totalBlocks();
+        int i = blocks.nextClearBit(0);
+        while (i < total) {
+            int j = blocks.nextSetBit(i);
+            if (j < 0 || j > total) j = total;
+            long off = (long) i * blockSize;
+            long end = Math.min((long) j * blockSize, expectedSize);
+            out.add(new long[]{off, end - off});
+            i = blocks.nextClearBit(j);
+        }
+        return out;
+    }
+
+    /** Guarda el bitmap de forma atómica (escritura a temporal + rename). */
+    synchronized void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.writeLong(expectedSize);
+            out.writeInt(blockSize);
+            byte[] bits = blocks.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static ReceivedRanges load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            long expectedSize = in.readLong();
+            int blockSize = in.readInt();
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            return new ReceivedRanges(expectedSize, blockSize, BitSet.valueOf(bits));
+        }
+    }
+
+    private int totalBlocks() {
+        return Math.toIntExact((expectedSize + blockSize - 1) / blockSize);
+    }
+}
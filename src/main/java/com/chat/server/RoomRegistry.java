@@ -0,0 +1,119 @@
+package com.chat.server;
+
+import jakarta.websocket.Session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Índice concurrente sala -> sesiones. Los mensajes de una sala solo se entregan a sus
+ * miembros, así el coste del fan-out depende del tamaño de la sala y no del total de conectados.
+ * Las salas vacías se eliminan (salvo la sala por defecto). Cada sala reserva su ring de historial,
+ * así que una sesión puede estar como mucho en -Dchat.rooms.per.session salas (contando la por defecto).
+ */
+final class RoomRegistry {
+
+    static final String DEFAULT_ROOM = "general";
+
+    /** Resultado de {@link #join}. */
+    enum Join { ADDED, ALREADY_MEMBER, LIMIT }
+
+    /** Una sala. Los chats se registran y encolan con el lock del objeto (ver ChatEndpoint#chat). */
+    static final class Room {
+        final String name;
+        final Set<Session> members = ConcurrentHashMap.newKeySet();
+        final ChatHistory history;
+        // lote de chats pendiente de entregar (solo con -Dchat.batch.enabled)
+        final ChatBatcher.Pending batch = new ChatBatcher.Pending();
+
+        Room(String name, int historySize, long currentSeq) {
+            this.name = name;
+            this.history = new ChatHistory(historySize, currentSeq);
+        }
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // índice inverso para limpiar al desconectar: id de sesión -> salas
+    private final Map<String, Set<String>> porSesion = new ConcurrentHashMap<>();
+    private final int historySize;
+    private final int maxPerSession;
+    // seq global actual: lo anterior a la creación de una sala solo está en el log en disco
+    private final LongSupplier currentSeq;
+
+    RoomRegistry(int historySize, int maxPerSession, LongSupplier currentSeq) {
+        this.historySize = historySize;
+        this.maxPerSession = Math.max(1, maxPerSession);
+        this.currentSeq = currentSeq;
+        rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM, historySize, currentSeq.getAsLong()));
+    }
+
+    static boolean isValidName(String room) {
+        return room != null && !room.isEmpty() && room.length() <= 64 && room.indexOf('\n') < 0;
+    }
+
+    /**
+     * Añade la sesión a la sala (creándola si no existe). Devuelve ALREADY_MEMBER si ya era miembro
+     * y LIMIT, sin crear nada, si la sesión ya está en maxPerSession salas.
+     */
+    Join join(Session session, String room) {
+        boolean[] limit = new boolean[1];
+        porSesion.compute(session.getId(), (id, mine) -> {
+            if (mine == null) mine = ConcurrentHashMap.newKeySet();
+            if (!mine.contains(room) && mine.size() >= maxPerSession) {
+                limit[0] = true;
+            } else {
+                mine.add(room);
+            }
+            return mine;
+        });
+        if (limit[0]) return Join.LIMIT;
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (k, r) -> {
+            Room rr = r != null ? r : new Room(k, historySize, currentSeq.getAsLong());
+            added[0] = rr.members.add(session);
+            return rr;
+        });
+        return added[0] ? Join.ADDED : Join.ALREADY_MEMBER;
+    }
+
+    /** Saca la sesión de la sala. Devuelve false si no era miembro. */
+    boolean leave(Session session, String room) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (k, r) -> {
+            removed[0] = r.members.remove(session);
+            return r.members.isEmpty() && !DEFAULT_ROOM.equals(k) ? null : r;
+        });
+        Set<String> mine = porSesion.get(session.getId());
+        if (mine != null) mine.remove(room);
+        return removed[0];
+    }
+
+    /** Saca la sesión de todas sus salas; devuelve las salas en las que estaba. */
+    Set<String> leaveAll(Session session) {
+        Set<String> mine = porSesion.remove(session.getId());
+        if (mine == null) return Collections.emptySet();
+        for (String room : mine) {
+            rooms.computeIfPresent(room, (k, r) -> {
+                r.members.remove(session);
+                return r.members.isEmpty() && !DEFAULT_ROOM.equals(k) ? null : r;
+            });
+        }
+        return mine;
+    }
+
+    Room get(String room) {
+        return rooms.get(room);
+    }
+
+    boolean isMember(Session session, String room) {
+        Room r = rooms.get(room);
+        return r != null && r.members.contains(session);
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,142 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.tyrus.container.grizzly.server.GrizzlyServerContainer;
+import org.glassfish.tyrus.core.TyrusWebSocketEngine;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Configuración de arranque del servidor. Cada clave {@code chat.*} se toma, por orden de prioridad, de:
+ * - la propiedad de sistema (-Dchat.server.port=8081)
+ * - la variable de entorno equivalente (CHAT_SERVER_PORT=8081: mayúsculas y '_' en lugar de '.')
+ * - el fichero de propiedades de --config / -Dchat.config / CHAT_CONFIG
+ * Lo que llega del entorno o del fichero se publica como propiedad de sistema antes de inicializar
+ * nada, así todas las opciones -Dchat.* del resto del servidor se pueden fijar también por fichero o entorno.
+ * Argumentos: [--config fichero] [--headless] [--preload] [--cds-train]
+ */
+final class ServerConfig {
+
+    final String host;
+    final int port;
+    final String path;
+    // hilos de Grizzly: los que atienden los mensajes (onMessage) y los del selector NIO (0 = por defecto de Grizzly)
+    final int workerThreads;
+    final int selectorThreads;
+    // tamaño máximo de un mensaje entrante (Tyrus)
+    final int incomingBufferSize;
+    final int maxSessions;
+    final long drainMillis;
+    final boolean headless;
+    final boolean preload;
+    final boolean cdsTrain;
+
+    private ServerConfig(boolean headless, boolean preload, boolean cdsTrain) {
+        this.host = System.getProperty("chat.server.host", "localhost");
+        this.port = Integer.getInteger("chat.server.port", 8080);
+        this.path = System.getProperty("chat.server.path", "/ws");
+        this.workerThreads = Integer.getInteger("chat.server.worker.threads", 0);
+        this.selectorThreads = Integer.getInteger("chat.server.selector.threads", 0);
+        this.incomingBufferSize = Integer.getInteger("chat.server.incoming.buffer", 4 * 1024 * 1024);
+        this.maxSessions = Integer.getInteger("chat.server.max.sessions", 0);
+        this.drainMillis = (long) (Double.parseDouble(System.getProperty("chat.server.drain.s", "10")) * 1000);
+        this.headless = headless || Boolean.getBoolean("chat.server.headless");
+        this.preload = preload || cdsTrain || Boolean.getBoolean("chat.server.preload");
+        this.cdsTrain = cdsTrain;
+    }
+
+    /** Lee argumentos, fichero y entorno, los vuelca en las propiedades de sistema y devuelve la configuración. */
+    static ServerConfig load(String[] args) {
+        String file = null;
+        boolean headless = false;
+        boolean preload = false;
+        boolean cdsTrain = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--config":
+                    if (i + 1 >= args.length) throw new IllegalArgumentException("--config necesita un fichero");
+                    file = args[++i];
+                    break;
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--preload":
+                    preload = true;
+                    break;
+                case "--cds-train":
+                    cdsTrain = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Argumento desconocido: " + args[i]
+                            + " (uso: [--config fichero] [--headless] [--preload] [--cds-train])");
+            }
+        }
+        if (file == null) file = System.getProperty("chat.config", System.getenv("CHAT_CONFIG"));
+        // primero el entorno y después el fichero: setIfAbsent deja ganar al primero que fija cada clave
+        int fromEnv = 0;
+        for (Map.Entry<String, String> e : System.getenv().entrySet()) {
+            String k = e.getKey();
+            if (!k.startsWith("CHAT_") || k.equals("CHAT_CONFIG")) continue;
+            if (setIfAbsent(k.toLowerCase(Locale.ROOT).replace('_', '.'), e.getValue())) fromEnv++;
+        }
+        int fromFile = 0;
+        if (file != null) {
+            Properties p = new Properties();
+            try (Reader r = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+                p.load(r);
+            } catch (IOException e) {
+                throw new IllegalStateException("No se pudo leer la configuración " + file, e);
+            }
+            for (String k : p.stringPropertyNames()) {
+                if (setIfAbsent(k, p.getProperty(k).trim())) fromFile++;
+            }
+        }
+        ServerConfig cfg = new ServerConfig(headless, preload, cdsTrain);
+        if (fromEnv > 0 || fromFile > 0) {
+            Log.info("Configuración: %d claves del entorno, %d de %s", fromEnv, fromFile, file != null ? file : "(sin fichero)");
+        }
+        return cfg;
+    }
+
+    /** Propiedades para el contenedor Tyrus/Grizzly. */
+    Map<String, Object> tyrusProperties() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(TyrusWebSocketEngine.INCOMING_BUFFER_SIZE, incomingBufferSize);
+        if (maxSessions > 0) props.put(TyrusWebSocketEngine.MAX_SESSIONS_PER_APP, maxSessions);
+        if (workerThreads > 0) {
+            props.put(GrizzlyServerContainer.WORKER_THREAD_POOL_CONFIG, ThreadPoolConfig.defaultConfig()
+                    .setPoolName("chat-grizzly-worker")
+                    .setCorePoolSize(workerThreads)
+                    .setMaxPoolSize(workerThreads));
+        }
+        if (selectorThreads > 0) {
+            props.put(GrizzlyServerContainer.SELECTOR_THREAD_POOL_CONFIG, ThreadPoolConfig.defaultConfig()
+                    .setPoolName("chat-grizzly-selector")
+                    .setCorePoolSize(selectorThreads)
+                    .setMaxPoolSize(selectorThreads));
+        }
+        return props;
+    }
+
+    private static boolean setIfAbsent(String key, String value) {
+        if (!key.startsWith("chat.") || System.getProperty(key) != null) return false;
+        System.setProperty(key, value);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ServerConfig{ws://%s:%d%s, workers=%s, selectors=%s, incomingBuffer=%d, maxSessions=%s, drain=%dms, headless=%s, preload=%s}",
+                host, port, path, workerThreads > 0 ? workerThreads : "def", selectorThreads > 0 ? selectorThreads : "def",
+                incomingBufferSize, maxSessions > 0 ? maxSessions : "sin límite", drainMillis, headless, preload);
+    }
+}
@@ -0,0 +1,353 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Malla TCP entre nodos con NIO (un único hilo selector).
+ * - Escucha en {@code listen} y recibe los mensajes de los nodos que se conectan
+ * - Abre una conexión saliente a cada peer configurado y publica por ellas
+ *   (cada nodo debe listar a todos los demás); reconecta con backoff si se cae
+ * - Mensajes con prefijo de longitud ({@link ClusterMessage#encode()}); si un peer no está
+ *   conectado, o su cola de escritura supera {@code maxQueued}, el mensaje se descarta para él
+ * - Con secreto compartido, quien acepta la conexión envía un reto aleatorio y solo admite mensajes
+ *   después de recibir su HMAC-SHA256 con el secreto; sin secreto cualquiera que alcance el puerto puede publicar
+ */
+final class TcpPeerBus implements ClusterBus, Runnable {
+
+    private static final int MAX_MESSAGE = 16 * 1024 * 1024;
+    private static final int CHALLENGE_BYTES = 32;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Peer> peers = new ArrayList<>();
+    private final int maxQueued;
+    // null = sin autenticación
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final Queue<Conn> pendientesEscritura = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile Consumer<ClusterMessage> listener = m -> { };
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    private static final class Peer {
+        final InetSocketAddress address;
+        volatile Conn conn;
+        boolean connecting = false;
+        long nextAttempt = 0;
+        long backoffMs = 100;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final class Conn {
+        final SocketChannel channel;
+        final Peer peer; // null en conexiones entrantes
+        final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        ByteBuffer readBuf = ByteBuffer.allocate(64 * 1024);
+        SelectionKey key;
+        // hasta autenticarse solo se acepta el mensaje del handshake
+        boolean authenticated = secret == null;
+        byte[] challenge;
+        long connectedAt;
+
+        Conn(SocketChannel channel, Peer peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+
+        void enqueue(ByteBuffer b) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                dropped.increment();
+                return;
+            }
+            writes.add(b);
+            pendientesEscritura.add(this);
+            selector.wakeup();
+        }
+    }
+
+    TcpPeerBus(InetSocketAddress listen, List<InetSocketAddress> peerAddresses, int maxQueued, String secret) throws IOException {
+        this.maxQueued = maxQueued;
+        this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        if (this.secret == null && !listen.getAddress().isLoopbackAddress()) {
+            Log.warn("El bus del cluster escucha en %s sin chat.cluster.secret: cualquiera que alcance el puerto puede inyectar mensajes", listen);
+        }
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(listen);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        for (InetSocketAddress a : peerAddresses) {
+            peers.add(new Peer(a));
+        }
+        this.thread = new Thread(this, "chat-cluster-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        ByteBuffer encoded = message.encode();
+        for (Peer p : peers) {
+            Conn c = p.conn;
+            if (c == null) {
+                dropped.increment();
+                continue;
+            }
+            c.enqueue(encoded.duplicate());
+            sent.increment();
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<ClusterMessage> listener) {
+        this.listener = listener;
+    }
+
+    int connectedPeers() {
+        int n = 0;
+        for (Peer p : peers) {
+            if (p.conn != null) n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                connectPeers();
+                selector.select(500);
+                Conn c;
+                while ((c = pendientesEscritura.poll()) != null) {
+                    if (c.key != null && c.key.isValid()) {
+                        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                for (SelectionKey k : selector.selectedKeys()) {
+                    handle(k);
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                Log.warn("Error en el bus del cluster: %s", e.getMessage());
+            }
+        }
+        try {
+            for (SelectionKey k : selector.keys()) {
+                k.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void connectPeers() {
+        long now = System.currentTimeMillis();
+        for (Peer p : peers) {
+            if (p.conn != null || p.connecting || now < p.nextAttempt) continue;
+            p.connecting = true;
+            try {
+                SocketChannel ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.connect(p.address);
+                Conn c = new Conn(ch, p);
+                c.key = ch.register(selector, SelectionKey.OP_CONNECT, c);
+            } catch (IOException e) {
+                p.connecting = false;
+                retryLater(p);
+            }
+        }
+    }
+
+    private void handle(SelectionKey k) {
+        if (!k.isValid()) return;
+        if (k.isAcceptable()) {
+            try {
+                SocketChannel ch = server.accept();
+                if (ch == null) return;
+                ch.configureBlocking(false);
+                Conn c = new Conn(ch, null);
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                if (!c.authenticated) {
+                    c.challenge = new byte[CHALLENGE_BYTES];
+                    random.nextBytes(c.challenge);
+                    c.enqueue(lengthPrefixed(c.challenge));
+                }
+            } catch (IOException e) {
+                Log.warn("Error aceptando nodo del cluster: %s", e.getMessage());
+            }
+            return;
+        }
+        Conn c = (Conn) k.attachment();
+        try {
+            if (k.isConnectable()) {
+                c.channel.finishConnect();
+                k.interestOps(SelectionKey.OP_READ);
+                // con secreto se publica por la conexión cuando se ha respondido al reto
+                if (c.authenticated) connected(c);
+            }
+            if (k.isReadable()) read(c);
+            if (k.isValid() && k.isWritable()) write(c);
+        } catch (IOException e) {
+            drop(c, e.getMessage());
+        }
+    }
+
+    private void read(Conn c) throws IOException {
+        int n = c.channel.read(c.readBuf);
+        if (n < 0) throw new IOException("conexión cerrada");
+        ByteBuffer b = c.readBuf;
+        b.flip();
+        while (b.remaining() >= 4) {
+            int len = b.getInt(b.position());
+            if (len < 0 || len > (c.authenticated ? MAX_MESSAGE : CHALLENGE_BYTES + 32)) {
+                throw new IOException("mensaje de cluster inválido (" + len + " bytes)");
+            }
+            if (b.remaining() < 4 + len) break;
+            b.position(b.position() + 4);
+            ByteBuffer body = b.slice();
+            body.limit(len);
+            b.position(b.position() + len);
+            if (!c.authenticated) {
+                handshake(c, body);
+                continue;
+            }
+            received.increment();
+            try {
+                listener.accept(ClusterMessage.decode(body));
+            } catch (RuntimeException e) {
+                Log.warn("Error entregando mensaje del cluster: %s", e.getMessage());
+            }
+        }
+        b.compact();
+        if (!b.hasRemaining()) {
+            // mensaje mayor que el buffer: crecer
+            ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+            b.flip();
+            bigger.put(b);
+            c.readBuf = bigger;
+        }
+    }
+
+    /**
+     * Entrante: el mensaje es el HMAC del reto enviado. Saliente: es el reto del otro nodo, se responde
+     * con su HMAC y desde ahí se publica por la conexión.
+     */
+    private void handshake(Conn c, ByteBuffer body) throws IOException {
+        byte[] recibido = new byte[body.remaining()];
+        body.get(recibido);
+        if (c.peer == null) {
+            if (!MessageDigest.isEqual(recibido, hmac(c.challenge))) {
+                throw new IOException("autenticación fallida desde " + c.channel.getRemoteAddress());
+            }
+            c.authenticated = true;
+        } else {
+            c.enqueue(lengthPrefixed(hmac(recibido)));
+            c.authenticated = true;
+            connected(c);
+        }
+    }
+
+    private byte[] hmac(byte[] challenge) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HMAC no disponible: " + e.getMessage(), e);
+        }
+    }
+
+    private static ByteBuffer lengthPrefixed(byte[] data) {
+        ByteBuffer b = ByteBuffer.allocate(4 + data.length);
+        b.putInt(data.length).put(data);
+        return b.flip();
+    }
+
+    private void connected(Conn c) {
+        c.peer.conn = c;
+        c.peer.connecting = false;
+        c.connectedAt = System.currentTimeMillis();
+        Log.info("Conectado al nodo %s", c.peer.address);
+    }
+
+    private void write(Conn c) throws IOException {
+        ByteBuffer head;
+        while ((head = c.writes.peek()) != null) {
+            c.channel.write(head);
+            if (head.hasRemaining()) return; // socket lleno: seguimos con OP_WRITE
+            c.writes.poll();
+            c.queued.decrementAndGet();
+        }
+        c.key.interestOps(SelectionKey.OP_READ);
+        // carrera con enqueue: si llegó algo entre el peek y el cambio de interés, se vuelve a pedir OP_WRITE
+        if (!c.writes.isEmpty()) c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void drop(Conn c, String motivo) {
+        if (c.peer == null && !c.authenticated) {
+            Log.warn("Conexión de cluster rechazada: %s", motivo);
+        }
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (c.peer != null) {
+            if (c.peer.conn != null) {
+                Log.warn("Conexión con el nodo %s perdida: %s", c.peer.address, motivo);
+            }
+            c.peer.conn = null;
+            c.peer.connecting = false;
+            // el backoff vuelve al mínimo solo tras una conexión estable (un peer que rechaza el reto cierra enseguida)
+            if (c.connectedAt > 0 && System.currentTimeMillis() - c.connectedAt > 10_000) c.peer.backoffMs = 100;
+            retryLater(c.peer);
+        }
+    }
+
+    private void retryLater(Peer p) {
+        p.nextAttempt = System.currentTimeMillis() + p.backoffMs;
+        p.backoffMs = Math.min(p.backoffMs * 2, 10_000);
+    }
+}
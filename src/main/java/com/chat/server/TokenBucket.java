@@ -0,0 +1,53 @@
+package com.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket sin locks, implementado como GCRA (generic cell rate algorithm): todo el estado es
+ * un único AtomicLong con el "instante teórico de llegada" (tat), así que admitir es un CAS.
+ * - {@code rate} unidades por segundo (mensajes o bytes)
+ * - ráfaga de hasta {@code rate * burstSeconds} unidades con el bucket lleno
+ */
+final class TokenBucket {
+
+    private final long rate;
+    private final long burstNanos;
+    private final AtomicLong tat;
+
+    TokenBucket(long rate, double burstSeconds) {
+        if (rate < 1) throw new IllegalArgumentException("rate debe ser >= 1");
+        this.rate = rate;
+        this.burstNanos = Math.max(1, (long) (burstSeconds * 1e9));
+        // empieza lleno
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Consume {@code cost} unidades. Devuelve 0 si se admite, o los nanosegundos que habría que
+     * esperar para que cupiera (sin consumir nada). Un coste mayor que la ráfaga cuenta como la ráfaga entera.
+     */
+    long tryAcquire(long cost, long now) {
+        long inc = increment(cost);
+        while (true) {
+            long t = tat.get();
+            long next = Math.max(t, now) + inc;
+            long wait = next - now - burstNanos;
+            if (wait > 0) return wait;
+            if (tat.compareAndSet(t, next)) return 0;
+        }
+    }
+
+    /** Devuelve {@code cost} unidades admitidas (el mensaje se descartó por otro bucket). */
+    void refund(long cost) {
+        tat.addAndGet(-increment(cost));
+    }
+
+    private long increment(long cost) {
+        return cost >= Long.MAX_VALUE / 1_000_000_000L ? burstNanos : Math.min(burstNanos, cost * 1_000_000_000L / rate);
+    }
+
+    /** true si el bucket está lleno (sin uso reciente): se puede olvidar sin perder nada. */
+    boolean idle(long now) {
+        return tat.get() - now <= 0;
+    }
+}
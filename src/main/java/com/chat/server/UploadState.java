@@ -0,0 +1,280 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+import jakarta.websocket.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estado de una subida en curso: escribe los chunks binarios directamente al fichero
+ * con escrituras posicionales de FileChannel (sin byte[] intermedio ni lock por chunk).
+ * - Los chunks llevan offset, así que pueden llegar en cualquier orden y desde varias sesiones
+ * - Bitmap de bloques recibidos ({@link ReceivedRanges}) persistido en {@code <fileId>.ranges}
+ *   cada -Dchat.upload.checkpoint.chunks chunks, para reanudar tras una desconexión
+ * - Preasignación opcional del fichero a expectedSize con -Dchat.upload.preallocate=true
+ * - Solo se escribe dentro de [0, expectedSize) (o de -Dchat.upload.max.mb si el tamaño no se anunció):
+ *   un offset fuera de rango no llega al disco
+ * - Los chunks en buffers de heap se copian a buffers directos del pool compartido
+ *   (-Dchat.upload.direct.buffer.size, -Dchat.upload.direct.buffers)
+ * - SHA-256 incremental mientras llegan los chunks: el que continúa el tramo ya resumido se
+ *   resume desde su propio buffer; los que llegaron antes de tiempo se leen del fichero (page cache)
+ *   cuando el tramo los alcanza. Al terminar solo queda lo que no se haya podido resumir aún
+ */
+final class UploadState {
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    // el chunkSize del cliente es el bloque del bitmap: se acota a [MIN_BLOCK_SIZE, MAX_BLOCK_SIZE]
+    static final int MIN_BLOCK_SIZE = 4 * 1024;
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    // tamaño máximo de una subida (anunciado o no)
+    static final long MAX_BYTES = Long.getLong("chat.upload.max.mb", 4096) * 1024 * 1024;
+
+    private static final boolean PREALLOCATE = Boolean.getBoolean("chat.upload.preallocate");
+    private static final int CHECKPOINT_CHUNKS = Integer.getInteger("chat.upload.checkpoint.chunks", 16);
+    private static final BufferPool DIRECT_POOL = new BufferPool(
+            Integer.getInteger("chat.upload.direct.buffer.size", 64 * 1024),
+            Integer.getInteger("chat.upload.direct.buffers", 64));
+
+    final String fileId;
+    final Path tmpPath;
+    final long expectedSize;
+    final String name;
+    final boolean resumed;
+    // última sesión que hizo upload_start: al cerrarse, la subida se aparca (ver ChatEndpoint)
+    volatile Session owner;
+    private final Path rangesPath;
+    private final ReceivedRanges ranges;
+    private final FileChannel channel;
+    // siguiente offset libre para chunks sin offset explícito (protocolo antiguo, en orden)
+    private final AtomicLong nextOffset = new AtomicLong();
+    private final AtomicLong sinceCheckpoint = new AtomicLong();
+    // [0, hashed) ya está en digest; ambos protegidos por hashLock
+    private final Object hashLock = new Object();
+    private final MessageDigest digest;
+    private long hashed;
+
+    private UploadState(String fileId, Path tmpPath, Path rangesPath, ReceivedRanges ranges,
+                        FileChannel channel, String name, boolean resumed) {
+        this.fileId = fileId;
+        this.tmpPath = tmpPath;
+        this.rangesPath = rangesPath;
+        this.ranges = ranges;
+        this.channel = channel;
+        this.expectedSize = ranges.expectedSize();
+        this.name = name;
+        this.resumed = resumed;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Abre la subida {@code fileId} en {@code dir}. Si existe un bitmap persistido
+     * de una subida anterior con el mismo tamaño, se reanuda en lugar de empezar de cero.
+     */
+    static UploadState open(Path dir, String fileId, String name, long expectedSize, int blockSize) throws IOException {
+        Files.createDirectories(dir);
+        Path part = dir.resolve(fileId + ".part");
+        Path rangesPath = dir.resolve(fileId + ".ranges");
+        ReceivedRanges ranges = null;
+        if (Files.exists(rangesPath) && Files.exists(part)) {
+            try {
+                ReceivedRanges prev = ReceivedRanges.load(rangesPath);
+                if (prev.expectedSize() == expectedSize) ranges = prev;
+            } catch (IOException e) {
+                Log.warn("Bitmap de subida ilegible, se reinicia fileId=%s: %s", fileId, e.getMessage());
+            }
+        }
+        boolean resumed = ranges != null;
+        if (!resumed) {
+            ranges = new ReceivedRanges(expectedSize, clampBlockSize(blockSize));
+        }
+        // READ también: el hash se pone al día leyendo del fichero cuando los chunks llegan desordenados
+        FileChannel ch = resumed
+                ? FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        if (PREALLOCATE && expectedSize > 0 && !resumed) {
+            try {
+                // reservar el tamaño final escribiendo el último byte
+                ch.write(ByteBuffer.allocate(1), expectedSize - 1);
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+        }
+        UploadState st = new UploadState(fileId, part, rangesPath, ranges, ch, name, resumed);
+        st.checkpoint();
+        return st;
+    }
+
+    /** El chunkSize pedido por el cliente, dentro de los límites del servidor (el por defecto si no es válido). */
+    static int clampBlockSize(int blockSize) {
+        if (blockSize <= 0) return DEFAULT_BLOCK_SIZE;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /** true si [offset, offset+len) cae dentro de la subida. */
+    boolean inRange(long offset, long len) {
+        long limit = expectedSize >= 0 ? expectedSize : MAX_BYTES;
+        return offset >= 0 && len >= 0 && offset <= limit - len;
+    }
+
+    /**
+     * Bytes distintos recibidos según el bitmap: los chunks reenviados o solapados no cuentan dos veces.
+     * Sin tamaño anunciado (chunks en orden) el último bloque incompleto se cuenta con el offset escrito.
+     */
+    long received() {
+        long bytes = ranges.receivedBytes();
+        return expectedSize >= 0 ? bytes : Math.max(bytes, nextOffset.get());
+    }
+
+    int blockSize() {
+        return ranges.blockSize();
+    }
+
+    boolean isComplete() {
+        return ranges.isComplete();
+    }
+
+    /** Rangos {offset, len} que faltan por recibir. */
+    List<long[]> missing() {
+        return ranges.missing();
+    }
+
+    /** Escribe el chunk a continuación del anterior (chunks sin offset explícito). */
+    void write(ByteBuffer buf) throws IOException {
+        long offset = nextOffset.getAndAdd(buf.remaining());
+        write(buf, offset);
+    }
+
+    /**
+     * Escribe el chunk en la posición indicada del fichero y lo marca en el bitmap.
+     * @throws IllegalArgumentException si el chunk se sale de la subida (ver {@link #inRange}); no se escribe nada
+     */
+    void write(ByteBuffer buf, long offset) throws IOException {
+        int len = buf.remaining();
+        if (!inRange(offset, len)) {
+            throw new IllegalArgumentException("chunk fuera de rango: offset=" + offset + " len=" + len + " size=" + expectedSize);
+        }
+        ByteBuffer chunk = buf.duplicate();
+        if (buf.isDirect()) {
+            writeFully(buf, offset);
+        } else {
+            // FileChannel copiaría el buffer de heap a uno directo temporal: usamos los del pool
+            ByteBuffer direct = DIRECT_POOL.acquire();
+            try {
+                long pos = offset;
+                while (buf.hasRemaining()) {
+                    direct.clear();
+                    int n = Math.min(direct.remaining(), buf.remaining());
+                    ByteBuffer slice = buf.slice();
+                    slice.limit(n);
+                    direct.put(slice);
+                    buf.position(buf.position() + n);
+                    direct.flip();
+                    writeFully(direct, pos);
+                    pos += n;
+                }
+            } finally {
+                DIRECT_POOL.release(direct);
+            }
+        }
+        nextOffset.accumulateAndGet(offset + len, Math::max);
+        ranges.mark(offset, len);
+        hash(chunk, offset);
+        if (sinceCheckpoint.incrementAndGet() % CHECKPOINT_CHUNKS == 0) {
+            checkpoint();
+        }
+    }
+
+    /** Persiste el bitmap de bloques recibidos. */
+    void checkpoint() throws IOException {
+        ranges.save(rangesPath);
+    }
+
+    /** Cierra el fichero conservando el bitmap para reanudar más tarde. */
+    void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Cierra la subida completa: borra el bitmap y devuelve el SHA-256 (hex) del contenido.
+     * El fichero queda en {@link #tmpPath} para que lo adopte el {@link UploadStore}.
+     */
+    String complete() throws IOException {
+        String hash;
+        try {
+            // sin truncar: con tamaño anunciado solo se completa con [0, expectedSize) entero recibido (y la
+            // preasignación ya deja el fichero en expectedSize); nextOffset no cuenta lo recibido antes de reanudar
+            synchronized (hashLock) {
+                // lo que no se pudo resumir mientras llegaba (huecos rellenados al final, subida reanudada...)
+                catchUp(channel.size());
+                hash = HexFormat.of().formatHex(digest.digest());
+            }
+        } finally {
+            channel.close();
+        }
+        Files.deleteIfExists(rangesPath);
+        return hash;
+    }
+
+    /** Bytes ya incluidos en el hash (para métricas y pruebas). */
+    long hashed() {
+        synchronized (hashLock) {
+            return hashed;
+        }
+    }
+
+    private void hash(ByteBuffer chunk, long offset) throws IOException {
+        synchronized (hashLock) {
+            if (offset == hashed) {
+                hashed += chunk.remaining();
+                digest.update(chunk);
+            }
+            catchUp(ranges.contiguousEnd(hashed));
+        }
+    }
+
+    /** Resume [hashed, end) leyéndolo del fichero. Llamar con hashLock. */
+    private void catchUp(long end) throws IOException {
+        if (hashed >= end) return;
+        ByteBuffer b = DIRECT_POOL.acquire();
+        try {
+            while (hashed < end) {
+                b.clear();
+                b.limit((int) Math.min(b.capacity(), end - hashed));
+                int n = channel.read(b, hashed);
+                if (n <= 0) break;
+                b.flip();
+                digest.update(b);
+                hashed += n;
+            }
+        } finally {
+            DIRECT_POOL.release(b);
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        long pos = position;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.chat.server;
+
+import com.chat.common.Log;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Almacén de subidas completas direccionado por contenido: cada fichero se guarda una sola vez
+ * como {@code <dir>/<sha256>}, aunque lo suban 50 usuarios.
+ * - El hash lo calcula {@link UploadState} mientras llegan los chunks; aquí solo se adopta el fichero
+ * - Uso de disco acotado (-Dchat.upload.store.max.mb, 1024) con expulsión LRU por último acceso
+ *   y caducidad (-Dchat.upload.store.ttl.h, 168; 0 = sin caducidad)
+ * - El índice vive en memoria y se reconstruye al arrancar a partir de los ficheros (mtime = último acceso)
+ * Las operaciones toman el lock del almacén, pero solo ocurren al cerrar una subida o empezar una descarga.
+ */
+final class UploadStore {
+
+    /** Fichero almacenado. */
+    static final class Blob {
+        final String hash;
+        final long size;
+        final Path path;
+        // último nombre con el que se subió (solo informativo: el contenido no tiene nombre)
+        volatile String name;
+        long lastAccess;
+
+        Blob(String hash, long size, Path path, String name, long lastAccess) {
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+            this.name = name;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /** Resultado de {@link #commit}: el blob y si el contenido ya estaba almacenado. */
+    static final class Committed {
+        final Blob blob;
+        final boolean duplicate;
+
+        Committed(Blob blob, boolean duplicate) {
+            this.blob = blob;
+            this.duplicate = duplicate;
+        }
+    }
+
+    private static final LongAdder DEDUP_HITS = Metrics.GLOBAL.counter(
+            "chat_store_dedup_total", "Subidas cuyo contenido ya estaba almacenado");
+    private static final LongAdder DEDUP_BYTES = Metrics.GLOBAL.counter(
+            "chat_store_dedup_bytes_total", "Bytes de disco ahorrados por deduplicación");
+    private static final LongAdder EVICTIONS = Metrics.GLOBAL.counter(
+            "chat_store_evictions_total", "Ficheros expulsados del almacén (LRU o caducidad)");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long ttlMillis;
+    // orden de acceso: el primero es el menos usado recientemente
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    UploadStore(Path dir, long maxBytes, long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /** Almacén en -Dchat.upload.store.dir (por defecto {@code <uploadDir>/store}). */
+    static UploadStore fromSystemProperties(Path uploadDir) {
+        Path dir = Path.of(System.getProperty("chat.upload.store.dir", uploadDir.resolve("store").toString()));
+        long maxBytes = Long.getLong("chat.upload.store.max.mb", 1024) * 1024 * 1024;
+        long ttlMillis = Long.getLong("chat.upload.store.ttl.h", 168) * 3600_000;
+        try {
+            return new UploadStore(dir, maxBytes, ttlMillis);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo abrir el almacén de subidas en " + dir, e);
+        }
+    }
+
+    /**
+     * Adopta {@code file} (una subida completa) bajo su hash. Si el contenido ya existe
+     * se borra {@code file} y se devuelve el existente.
+     */
+    synchronized Committed commit(Path file, String hash, String name) throws IOException {
+        long now = System.currentTimeMillis();
+        Blob existing = blobs.get(hash);
+        if (existing != null && Files.exists(existing.path)) {
+            Files.deleteIfExists(file);
+            existing.name = name;
+            touch(existing, now);
+            DEDUP_HITS.increment();
+            DEDUP_BYTES.add(existing.size);
+            return new Committed(existing, true);
+        }
+        Path dest = dir.resolve(hash);
+        Files.move(file, dest, StandardCopyOption.REPLACE_EXISTING);
+        Blob b = new Blob(hash, Files.size(dest), dest, name, now);
+        if (existing != null) totalBytes -= existing.size;
+        blobs.put(hash, b);
+        totalBytes += b.size;
+        evict(hash, now);
+        return new Committed(b, false);
+    }
+
+    /** El blob con ese hash, o null si no existe o ha caducado. Cuenta como acceso para el LRU. */
+    synchronized Blob get(String hash) {
+        Blob b = blobs.get(hash);
+        if (b == null) return null;
+        long now = System.currentTimeMillis();
+        if (expired(b, now) || !Files.exists(b.path)) {
+            remove(b);
+            return null;
+        }
+        touch(b, now);
+        return b;
+    }
+
+    synchronized int files() {
+        return blobs.size();
+    }
+
+    synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /** Expulsa caducados y, si se pasa de maxBytes, los menos usados (nunca {@code keep}). */
+    private void evict(String keep, long now) {
+        Iterator<Blob> it = blobs.values().iterator();
+        while (it.hasNext()) {
+            Blob b = it.next();
+            if (b.hash.equals(keep)) continue;
+            // orden LRU = lastAccess creciente: si este ni sobra ni ha caducado, los siguientes tampoco
+            if (totalBytes <= maxBytes && !expired(b, now)) break;
+            it.remove();
+            delete(b);
+        }
+    }
+
+    private void remove(Blob b) {
+        blobs.remove(b.hash);
+        delete(b);
+    }
+
+    private void delete(Blob b) {
+        totalBytes -= b.size;
+        EVICTIONS.increment();
+        try {
+            // en Linux una descarga en curso con el fichero mapeado sigue funcionando
+            Files.deleteIfExists(b.path);
+        } catch (IOException e) {
+            Log.warn("No se pudo borrar %s del almacén: %s", b.path, e.getMessage());
+        }
+        Log.debug("Expulsado del almacén: %s (%d bytes)", b.hash, b.size);
+    }
+
+    private boolean expired(Blob b, long now) {
+        return ttlMillis > 0 && now - b.lastAccess >= ttlMillis;
+    }
+
+    private void touch(Blob b, long now) {
+        b.lastAccess = now;
+        try {
+            Files.setLastModifiedTime(b.path, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            // solo afecta al orden LRU tras un reinicio
+        }
+    }
+
+    private void load() throws IOException {
+        List<Blob> found = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                if (n.length() != 64 || !n.matches("[0-9a-f]+") || !Files.isRegularFile(p)) continue;
+                found.add(new Blob(n, Files.size(p), p, n, Files.getLastModifiedTime(p).toMillis()));
+            }
+        }
+        found.sort(Comparator.comparingLong(b -> b.lastAccess));
+        for (Blob b : found) {
+            blobs.put(b.hash, b);
+            totalBytes += b.size;
+        }
+        evict(null, System.currentTimeMillis());
+        if (!blobs.isEmpty()) Log.info("Almacén de subidas: %d ficheros, %d bytes en %s", blobs.size(), totalBytes, dir);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UploadStore{dir=" + dir + ", files=" + blobs.size() + ", bytes=" + totalBytes + ", maxBytes=" + maxBytes + "}";
+    }
+}